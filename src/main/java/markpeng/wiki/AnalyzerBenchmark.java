@@ -0,0 +1,171 @@
+package markpeng.wiki;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.StopFilter;
+import org.apache.lucene.analysis.en.PorterStemFilter;
+import org.apache.lucene.analysis.miscellaneous.WordDelimiterFilter;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+
+/**
+ * Checks that {@link WikiAnalyzer} produces exactly the tokens (terms,
+ * offsets and position increments) of the old analysis chain, then times the
+ * old chain built per call (as the question tokenizer did), the old chain
+ * reused per thread (as the indexer did) and WikiAnalyzer. Reads the text
+ * from a file, or generates text with a skewed word distribution.
+ */
+public class AnalyzerBenchmark {
+
+	private static final String[] STEMS = { "photosynthes", "cell", "protein", "energ", "orbit", "plate", "climat",
+			"evolution", "gene", "mitochondri", "neutron", "electron", "river", "volcan", "planet", "speci", "atom",
+			"gravit", "earthquak", "ocean", "enzym", "tecton", "molecul", "reaction", "organ", "structur", "function",
+			"relat", "connect", "generat", "nation", "develop", "process", "condition", "observ", "measur" };
+	private static final String[] SUFFIXES = { "", "s", "es", "ing", "ed", "ation", "ations", "al", "ally", "ic",
+			"ize", "izing", "ness", "ful", "ive", "ity", "ies", "y", "er", "ers" };
+	private static final String[] OTHER = { "the", "of", "and", "in", "to", "a", "is", "was", "for", "on", "with",
+			"as", "by", "at", "from", "1990s", "CamelCase", "iPhone", "H2O", "3.14", "co-operation", "U.S.",
+			"Wi-Fi", "e-mail" };
+
+	/**
+	 * The chain as it was copied into the indexer and the question answering.
+	 */
+	private static TokenStream oldChain(StandardTokenizer tokenzier) {
+		TokenStream ts = new StopFilter(tokenzier, StandardAnalyzer.STOP_WORDS_SET);
+		int flags = WordDelimiterFilter.SPLIT_ON_NUMERICS | WordDelimiterFilter.SPLIT_ON_CASE_CHANGE
+				| WordDelimiterFilter.GENERATE_NUMBER_PARTS | WordDelimiterFilter.GENERATE_WORD_PARTS;
+		ts = new WordDelimiterFilter(ts, flags, null);
+		ts = new LowerCaseFilter(ts);
+		return new PorterStemFilter(ts);
+	}
+
+	private static Analyzer oldAnalyzer() {
+		return new Analyzer() {
+			@Override
+			protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+				StandardTokenizer tokenzier = new StandardTokenizer(reader);
+				return new TokenStreamComponents(tokenzier, oldChain(tokenzier));
+			}
+		};
+	}
+
+	private static List<String> tokens(TokenStream ts) throws IOException {
+		List<String> tokens = new ArrayList<String>();
+		CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+		OffsetAttribute offset = ts.addAttribute(OffsetAttribute.class);
+		PositionIncrementAttribute posInc = ts.addAttribute(PositionIncrementAttribute.class);
+		try {
+			ts.reset();
+			while (ts.incrementToken())
+				tokens.add(term.toString() + "/" + offset.startOffset() + "-" + offset.endOffset() + "/"
+						+ posInc.getPositionIncrement());
+			ts.end();
+		} finally {
+			ts.close();
+		}
+		return tokens;
+	}
+
+	private static long consume(TokenStream ts) throws IOException {
+		long length = 0;
+		CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+		try {
+			ts.reset();
+			while (ts.incrementToken())
+				length += term.length();
+			ts.end();
+		} finally {
+			ts.close();
+		}
+		return length;
+	}
+
+	private static List<String> generate(int documents, int words) {
+		Random random = new Random(42);
+		List<String> texts = new ArrayList<String>();
+		for (int d = 0; d < documents; d++) {
+			StringBuilder sb = new StringBuilder();
+			for (int w = 0; w < words; w++) {
+				// skewed towards the first entries, like real word frequencies
+				double r = random.nextDouble();
+				if (r < 0.3)
+					sb.append(OTHER[(int) (OTHER.length * r * r / 0.09)]);
+				else
+					sb.append(STEMS[(int) (STEMS.length * Math.pow(random.nextDouble(), 2))]).append(
+							SUFFIXES[random.nextInt(SUFFIXES.length)]);
+				sb.append(w % 12 == 11 ? ". " : " ");
+			}
+			texts.add(sb.toString());
+		}
+		return texts;
+	}
+
+	public static void main(String[] args) throws IOException {
+		// java -cp lucene-wikipedia-0.0.1-jar-with-dependencies.jar
+		// markpeng.wiki.AnalyzerBenchmark [text file] [rounds]
+
+		List<String> texts;
+		if (args.length > 0 && !args[0].matches("\\d+")) {
+			// one document per paragraph
+			String all = new String(Files.readAllBytes(Paths.get(args[0])), Charset.forName("UTF-8"));
+			texts = new ArrayList<String>();
+			for (String paragraph : all.split("\n\\s*\n"))
+				texts.add(paragraph);
+		} else
+			texts = generate(2000, 2000);
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Analyzer oldAnalyzer = oldAnalyzer();
+		Analyzer wikiAnalyzer = new WikiAnalyzer();
+
+		long tokenCount = 0;
+		for (String text : texts) {
+			List<String> expected = tokens(oldChain(new StandardTokenizer(new StringReader(text))));
+			List<String> actual = tokens(wikiAnalyzer.tokenStream("text", text));
+			if (!expected.equals(actual))
+				throw new IllegalStateException("Token output differs for: "
+						+ text.substring(0, Math.min(200, text.length())));
+			tokenCount += expected.size();
+		}
+		System.out.println(texts.size() + " documents, " + tokenCount + " tokens: identical token output");
+
+		System.out.println("round\tper call chain(ms)\treused chain(ms)\tWikiAnalyzer(ms)\tspeedup over reused");
+		long check = 0;
+		for (int round = 1; round <= rounds; round++) {
+			long start = System.nanoTime();
+			for (String text : texts)
+				check += consume(oldChain(new StandardTokenizer(new StringReader(text))));
+			long perCall = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (String text : texts)
+				check += consume(oldAnalyzer.tokenStream("text", text));
+			long reused = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (String text : texts)
+				check += consume(wikiAnalyzer.tokenStream("text", text));
+			long cached = System.nanoTime() - start;
+
+			System.out.println(round + "\t" + perCall / 1000000 + "\t" + reused / 1000000 + "\t" + cached / 1000000
+					+ "\t" + String.format("%.2fx", (double) reused / cached));
+		}
+		if (check == 0)
+			System.out.println("no tokens");
+	}
+
+}
@@ -0,0 +1,312 @@
+package markpeng.wiki;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Builds the query of an answer, the question with the answer in its blanks or
+ * after it, from the analyzed terms, as the classic query parser built it from
+ * the text with the query syntax characters replaced by spaces: the text is
+ * split into words at white space and those characters, each word analyzed
+ * into a term query, or a boolean query of its terms at different positions.
+ * The words of the question and the answer are analyzed once, for any number
+ * of fields and operators.
+ */
+public class AnswerQueryBuilder {
+
+	public static final String BLANK = "__________";
+
+	// white space of the query parser (and \u3000), its syntax characters and
+	// the / of regular expressions
+	private static final boolean[] SEPARATORS = new boolean[128];
+	static {
+		for (char c : " \t\n\r()+-&|{}[]^\"~*?:\\/!".toCharArray())
+			SEPARATORS[c] = true;
+	}
+
+	private final Analyzer analyzer;
+
+	public AnswerQueryBuilder(Analyzer analyzer) {
+		this.analyzer = analyzer;
+	}
+
+	/**
+	 * Analyzes a question, whose blanks the answers are put in.
+	 */
+	public Analyzed analyzeQuestion(CharSequence question) throws IOException {
+		return analyze(question, true);
+	}
+
+	public Analyzed analyzeAnswer(CharSequence answer) throws IOException {
+		return analyze(answer, false);
+	}
+
+	private Analyzed analyze(CharSequence text, boolean blanks) throws IOException {
+		Analyzed analyzed = new Analyzed();
+		if (blanks) {
+			int blank = indexOf(text, BLANK, 0);
+			while (blank >= 0) {
+				analyzed.addBlank(blank);
+				blank = indexOf(text, BLANK, blank + BLANK.length());
+			}
+		}
+
+		WordReader reader = new WordReader(text, analyzed);
+		// the analyzer's chain of this thread, reused between calls
+		TokenStream ts = analyzer.tokenStream("text", reader);
+		try {
+			CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
+			OffsetAttribute offsetAtt = ts.addAttribute(OffsetAttribute.class);
+			PositionIncrementAttribute posIncAtt = ts.addAttribute(PositionIncrementAttribute.class);
+			ts.reset();
+			int word = -1;
+			int end = 0;
+			while (ts.incrementToken()) {
+				int start = offsetAtt.startOffset();
+				if (word < 0 || reader.separated(end, start))
+					word++;
+				end = Math.max(end, offsetAtt.endOffset());
+				analyzed.addTerm(termAtt.toString(), start, word, posIncAtt.getPositionIncrement() > 0);
+			}
+		} finally {
+			ts.end();
+			ts.close();
+		}
+		return analyzed;
+	}
+
+	/**
+	 * @param occur
+	 *            MUST for every word of the question and the answer, SHOULD for
+	 *            any
+	 * @return the query matching the question with the answer in any of the
+	 *         fields
+	 */
+	public Query build(Analyzed question, Analyzed answer, Occur occur, String... fields) {
+		List<Query> fieldQueries = new ArrayList<Query>(fields.length);
+		for (String field : fields) {
+			Query fieldQuery = build(question, answer, occur, field);
+			if (fieldQuery != null)
+				fieldQueries.add(fieldQuery);
+		}
+		return combine(fieldQueries, Occur.SHOULD, new BooleanQuery());
+	}
+
+	/**
+	 * @return the query in one field, null if no word has a term
+	 */
+	private Query build(Analyzed question, Analyzed answer, Occur occur, String field) {
+		List<Query> words = new ArrayList<Query>();
+		int from = 0;
+		for (int b = 0; b < question.blankCount; b++) {
+			int to = from;
+			while (to < question.size && question.offsets[to] < question.blanks[b])
+				to++;
+			addWords(question, from, to, occur, field, words);
+			addWords(answer, 0, answer.size, occur, field, words);
+			from = to;
+		}
+		addWords(question, from, question.size, occur, field, words);
+		if (question.blankCount == 0)
+			addWords(answer, 0, answer.size, occur, field, words);
+		return combine(words, occur, null);
+	}
+
+	private static Query combine(List<Query> clauses, Occur occur, Query none) {
+		if (clauses.isEmpty())
+			return none;
+		if (clauses.size() == 1)
+			return clauses.get(0);
+		BooleanQuery bq = new BooleanQuery();
+		for (Query clause : clauses)
+			bq.add(clause, occur);
+		return bq;
+	}
+
+	/**
+	 * Adds the query of each word of the terms from to to.
+	 */
+	private static void addWords(Analyzed analyzed, int from, int to, Occur occur, String field, List<Query> words) {
+		int start = from;
+		while (start < to) {
+			int end = start + 1;
+			while (end < to && analyzed.words[end] == analyzed.words[start])
+				end++;
+			words.add(wordQuery(analyzed, start, end, occur, field));
+			start = end;
+		}
+	}
+
+	/**
+	 * @return the query of the terms of a word: a term query for a single
+	 *         term, terms at the same position as alternatives
+	 */
+	private static Query wordQuery(Analyzed analyzed, int start, int end, Occur occur, String field) {
+		if (end - start == 1)
+			return termQuery(analyzed, start, field);
+
+		boolean positions = false;
+		for (int i = start + 1; i < end; i++)
+			positions |= analyzed.newPositions[i];
+		if (!positions) {
+			BooleanQuery synonyms = new BooleanQuery(true);
+			for (int i = start; i < end; i++)
+				synonyms.add(termQuery(analyzed, i, field), Occur.SHOULD);
+			return synonyms;
+		}
+
+		BooleanQuery bq = new BooleanQuery();
+		Query current = null;
+		for (int i = start; i < end; i++) {
+			if (current == null || analyzed.newPositions[i]) {
+				if (current != null)
+					bq.add(current, occur);
+				current = termQuery(analyzed, i, field);
+				continue;
+			}
+			if (!(current instanceof BooleanQuery)) {
+				BooleanQuery synonyms = new BooleanQuery(true);
+				synonyms.add(current, Occur.SHOULD);
+				current = synonyms;
+			}
+			((BooleanQuery) current).add(termQuery(analyzed, i, field), Occur.SHOULD);
+		}
+		bq.add(current, occur);
+		return bq;
+	}
+
+	private static Query termQuery(Analyzed analyzed, int i, String field) {
+		return new TermQuery(new Term(field, analyzed.bytes[i]));
+	}
+
+	private static int indexOf(CharSequence text, String s, int from) {
+		int last = text.length() - s.length();
+		for (int i = from; i <= last; i++) {
+			int j = 0;
+			while (j < s.length() && text.charAt(i + j) == s.charAt(j))
+				j++;
+			if (j == s.length())
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * The analyzed terms of a text, with the word each is part of.
+	 */
+	public static class Analyzed {
+
+		private int size = 0;
+		private String[] terms = new String[16];
+		private BytesRef[] bytes = new BytesRef[16];
+		// start offset of each term, and its word
+		private int[] offsets = new int[16];
+		private int[] words = new int[16];
+		// whether the term is at the position after the one before
+		private boolean[] newPositions = new boolean[16];
+		private int[] blanks = new int[2];
+		private int blankCount = 0;
+
+		private void addTerm(String term, int offset, int word, boolean newPosition) {
+			if (size == terms.length) {
+				terms = Arrays.copyOf(terms, size * 2);
+				bytes = Arrays.copyOf(bytes, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+				words = Arrays.copyOf(words, size * 2);
+				newPositions = Arrays.copyOf(newPositions, size * 2);
+			}
+			terms[size] = term;
+			bytes[size] = new BytesRef(term);
+			offsets[size] = offset;
+			words[size] = word;
+			newPositions[size] = newPosition;
+			size++;
+		}
+
+		private void addBlank(int offset) {
+			if (blankCount == blanks.length)
+				blanks = Arrays.copyOf(blanks, blankCount * 2);
+			blanks[blankCount++] = offset;
+		}
+
+		private boolean inBlank(int offset) {
+			for (int b = 0; b < blankCount; b++) {
+				if (offset >= blanks[b] && offset < blanks[b] + BLANK.length())
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return the analyzed terms in text order
+		 */
+		public List<String> getTerms() {
+			return Collections.unmodifiableList(Arrays.asList(terms).subList(0, size));
+		}
+
+	}
+
+	/**
+	 * Reads the text with the separators and blanks as spaces, so that no
+	 * token spans two words.
+	 */
+	private static class WordReader extends Reader {
+
+		private final CharSequence text;
+		private final Analyzed analyzed;
+		private int pos = 0;
+
+		WordReader(CharSequence text, Analyzed analyzed) {
+			this.text = text;
+			this.analyzed = analyzed;
+		}
+
+		boolean isSeparator(int i) {
+			char c = text.charAt(i);
+			return (c < 128 ? SEPARATORS[c] : c == '\u3000') || analyzed.inBlank(i);
+		}
+
+		/**
+		 * @return whether a separator lies between the offsets
+		 */
+		boolean separated(int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (isSeparator(i))
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if (pos >= text.length())
+				return -1;
+			int n = Math.min(len, text.length() - pos);
+			for (int i = 0; i < n; i++, pos++)
+				cbuf[off + i] = isSeparator(pos) ? ' ' : text.charAt(pos);
+			return n;
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+}
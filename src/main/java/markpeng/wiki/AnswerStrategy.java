@@ -0,0 +1,81 @@
+package markpeng.wiki;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.Similarity;
+
+/**
+ * A way of choosing the answer of a question: the queries of its four
+ * answers, the similarity scoring them, how the top hits of an answer make
+ * its score and whether other queries are searched when the first ones give
+ * no answer. The answer with the highest score above zero is chosen.
+ * <p>
+ * QuestionToWiki answers the questions with any number of strategies in one
+ * pass, reading each question once and searching a query once for all the
+ * strategies that build it with the same similarity.
+ */
+public interface AnswerStrategy {
+
+	/**
+	 * The question being answered.
+	 */
+	interface Question {
+
+		/**
+		 * @param occur
+		 *            MUST for every term of the question and the answer, SHOULD
+		 *            for any
+		 * @return the query of every answer: the question with the answer,
+		 *         searched in each of the fields
+		 */
+		Query[] answerQueries(Occur occur, String... fields);
+
+	}
+
+	/**
+	 * Top hits of the query of an answer, shared by the strategies searching
+	 * the same query.
+	 */
+	interface AnswerHits {
+
+		ScoreDoc[] getHits();
+
+		/**
+		 * @return frequency of the analyzed terms of the answer in the text of
+		 *         each hit, counted once for all strategies
+		 */
+		int[] getAnswerTermCounts() throws IOException;
+
+	}
+
+	/**
+	 * Name on the command line and in the name of the output file.
+	 */
+	String getName();
+
+	/**
+	 * @return the similarity scoring the hits, null for the default one. Its
+	 *         class must determine the scores, as cached hits are keyed on it.
+	 */
+	Similarity getSimilarity();
+
+	/**
+	 * @return the query of every answer, of the second search if fallback
+	 */
+	Query[] createQueries(Question question, boolean fallback);
+
+	/**
+	 * @return whether to search again, with the fallback queries, after the
+	 *         first queries gave these answer scores
+	 */
+	boolean needsFallback(double[] scores);
+
+	/**
+	 * @return score of an answer from its top hits
+	 */
+	double score(AnswerHits hits, boolean fallback) throws IOException;
+
+}
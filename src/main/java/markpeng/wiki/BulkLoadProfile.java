@@ -0,0 +1,147 @@
+package markpeng.wiki;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.RateLimitedDirectoryWrapper;
+import org.apache.lucene.util.InfoStream;
+
+/**
+ * IndexWriter settings for a one-shot bulk build: a large RAM buffer so
+ * segments are flushed rarely, a tiered merge policy that lets more segments
+ * pile up per tier before merging, a concurrent merge scheduler whose merge
+ * writes are capped in MB/s, optionally no compound files and an optional
+ * final forceMerge. Also keeps track of the time spent flushing and merging
+ * across every writer it was applied to.
+ */
+public class BulkLoadProfile {
+
+	private double ramBufferMB = 512;
+	private double mergeMBPerSec = 200;
+	private boolean compoundFiles = false;
+	private int segmentsPerTier = 20;
+	private int mergeThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	private int forceMergeSegments = 0;
+
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushNanos = new AtomicLong();
+	private final AtomicLong merges = new AtomicLong();
+	private final AtomicLong mergeNanos = new AtomicLong();
+	private final AtomicLong forceMergeNanos = new AtomicLong();
+
+	public static BulkLoadProfile fromOptions(CommandLineOptions options) {
+		BulkLoadProfile profile = new BulkLoadProfile();
+		profile.ramBufferMB = options.getDouble("ramBufferMB", profile.ramBufferMB);
+		profile.mergeMBPerSec = options.getDouble("mergeMBPerSec", profile.mergeMBPerSec);
+		profile.compoundFiles = options.getBoolean("compoundFiles", profile.compoundFiles);
+		profile.segmentsPerTier = options.getInt("segmentsPerTier", profile.segmentsPerTier);
+		profile.mergeThreads = options.getInt("mergeThreads", profile.mergeThreads);
+		profile.forceMergeSegments = options.getInt("forceMerge", profile.forceMergeSegments);
+		return profile;
+	}
+
+	/**
+	 * Caps the write rate of merges; flushes are never throttled.
+	 */
+	public Directory wrap(Directory dir) {
+		if (mergeMBPerSec <= 0)
+			return dir;
+
+		RateLimitedDirectoryWrapper limited = new RateLimitedDirectoryWrapper(dir);
+		limited.setMaxWriteMBPerSec(mergeMBPerSec, IOContext.Context.MERGE);
+		return limited;
+	}
+
+	public void apply(IndexWriterConfig config) {
+		config.setRAMBufferSizeMB(ramBufferMB);
+		config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+		config.setUseCompoundFile(compoundFiles);
+
+		TieredMergePolicy mergePolicy = new TieredMergePolicy();
+		mergePolicy.setSegmentsPerTier(segmentsPerTier);
+		mergePolicy.setMaxMergeAtOnce(segmentsPerTier);
+		mergePolicy.setNoCFSRatio(compoundFiles ? TieredMergePolicy.DEFAULT_NO_CFS_RATIO : 0.0);
+		config.setMergePolicy(mergePolicy);
+
+		ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler() {
+			@Override
+			protected void doMerge(MergePolicy.OneMerge merge) throws IOException {
+				long start = System.nanoTime();
+				try {
+					super.doMerge(merge);
+				} finally {
+					mergeNanos.addAndGet(System.nanoTime() - start);
+					merges.incrementAndGet();
+				}
+			}
+		};
+		// room for merges to queue up before indexing threads are stalled
+		scheduler.setMaxMergesAndThreads(mergeThreads + 4, mergeThreads);
+		config.setMergeScheduler(scheduler);
+
+		config.setInfoStream(new FlushTimer());
+	}
+
+	/**
+	 * Runs the optional final forceMerge into a query optimized layout.
+	 */
+	public void finish(IndexWriter writer) throws IOException {
+		if (forceMergeSegments <= 0)
+			return;
+
+		long start = System.nanoTime();
+		writer.forceMerge(forceMergeSegments);
+		forceMergeNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	public String report() {
+		return String.format(
+				"Bulk load: %d flushes in %.1f s, %d merges (incl. forceMerge) in %.1f s "
+						+ "(merge threads %d, cap %s MB/s), forceMerge(%d) %.1f s",
+				flushes.get(), flushNanos.get() / 1e9, merges.get(), mergeNanos.get() / 1e9, mergeThreads,
+				mergeMBPerSec > 0 ? Double.toString(mergeMBPerSec) : "none", forceMergeSegments,
+				forceMergeNanos.get() / 1e9);
+	}
+
+	/**
+	 * Times segment flushes from the DocumentsWriterPerThread messages, which
+	 * are logged by the flushing thread at the start and end of each flush.
+	 * Only that component is enabled, so the writer logs nothing else.
+	 */
+	private class FlushTimer extends InfoStream {
+
+		private final ThreadLocal<Long> flushStart = new ThreadLocal<Long>();
+
+		@Override
+		public boolean isEnabled(String component) {
+			return "DWPT".equals(component);
+		}
+
+		@Override
+		public void message(String component, String message) {
+			if (message.startsWith("flush postings as segment")) {
+				flushStart.set(System.nanoTime());
+			} else if (message.startsWith("flushed: segment=")) {
+				Long start = flushStart.get();
+				if (start != null) {
+					flushNanos.addAndGet(System.nanoTime() - start);
+					flushes.incrementAndGet();
+					flushStart.remove();
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+}
@@ -0,0 +1,93 @@
+package markpeng.wiki;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.en.PorterStemFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
+import org.apache.lucene.analysis.util.CharArrayMap;
+
+/**
+ * Drop-in replacement for {@link PorterStemFilter} that remembers the stem of
+ * every surface form it has seen. Word frequencies are skewed, so most tokens
+ * are looked up on the term buffer itself, without stemming and without
+ * creating a String. A miss is stemmed by a PorterStemFilter over a one token
+ * stream, so the stems are exactly those of Lucene's. The cache is emptied
+ * when it reaches its size limit. Like any TokenStream an instance belongs to
+ * a single thread, and so does its cache.
+ */
+public final class CachingPorterStemFilter extends TokenFilter {
+
+	public static final int DEFAULT_CACHE_SIZE = 50000;
+
+	private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+	private final KeywordAttribute keywordAtt = addAttribute(KeywordAttribute.class);
+
+	private final int maxCacheSize;
+	private final CharArrayMap<char[]> cache;
+
+	private final SingleToken missToken = new SingleToken();
+	private final TokenStream missStemmer = new PorterStemFilter(missToken);
+
+	public CachingPorterStemFilter(TokenStream input) {
+		this(input, DEFAULT_CACHE_SIZE);
+	}
+
+	public CachingPorterStemFilter(TokenStream input, int maxCacheSize) {
+		super(input);
+		this.maxCacheSize = maxCacheSize;
+		this.cache = new CharArrayMap<char[]>(Math.min(maxCacheSize, 1024), false);
+	}
+
+	@Override
+	public boolean incrementToken() throws IOException {
+		if (!input.incrementToken())
+			return false;
+		if (keywordAtt.isKeyword())
+			return true;
+
+		char[] buffer = termAtt.buffer();
+		int length = termAtt.length();
+		char[] stem = cache.get(buffer, 0, length);
+		if (stem == null) {
+			stem = stem(buffer, length);
+			if (cache.size() >= maxCacheSize)
+				cache.clear();
+			cache.put(Arrays.copyOf(buffer, length), stem);
+		}
+		termAtt.copyBuffer(stem, 0, stem.length);
+		return true;
+	}
+
+	private char[] stem(char[] buffer, int length) throws IOException {
+		missToken.set(buffer, length);
+		missStemmer.incrementToken();
+		return Arrays.copyOf(missToken.term.buffer(), missToken.term.length());
+	}
+
+	/**
+	 * Hands out the one term it was set to.
+	 */
+	private static final class SingleToken extends TokenStream {
+
+		private final CharTermAttribute term = addAttribute(CharTermAttribute.class);
+		private boolean available = false;
+
+		void set(char[] buffer, int length) {
+			term.copyBuffer(buffer, 0, length);
+			available = true;
+		}
+
+		@Override
+		public boolean incrementToken() {
+			boolean token = available;
+			available = false;
+			return token;
+		}
+
+	}
+
+}
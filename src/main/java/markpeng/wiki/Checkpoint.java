@@ -0,0 +1,93 @@
+package markpeng.wiki;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Indexing progress stored as the commit user data of the IndexWriter, so a
+ * committed index always knows how far into the dump it got.
+ */
+public class Checkpoint {
+
+	private static final String LAST_PAGE_ID = "lastPageId";
+	private static final String LAST_TITLE = "lastTitle";
+	private static final String CURRENT_ID = "currentId";
+	private static final String DUMP_OFFSET = "dumpOffset";
+	private static final String PAGES = "pages";
+
+	private String lastPageId;
+	private String lastTitle;
+	private int currentId;
+	private long dumpOffset;
+	private long pages;
+
+	/**
+	 * @param lastPageId
+	 *            dump page id of the last page handed to the indexer, null in
+	 *            multistream mode
+	 * @param dumpOffset
+	 *            compressed bytes consumed; in multistream mode the offset of
+	 *            the first stream not yet indexed
+	 * @param pages
+	 *            pages read from the dump so far
+	 */
+	public Checkpoint(String lastPageId, String lastTitle, long dumpOffset, long pages) {
+		this.lastPageId = lastPageId;
+		this.lastTitle = lastTitle;
+		this.dumpOffset = dumpOffset;
+		this.pages = pages;
+	}
+
+	public static Checkpoint fromCommitData(Map<String, String> data) {
+		if (data == null || !data.containsKey(CURRENT_ID))
+			return null;
+
+		Checkpoint checkpoint = new Checkpoint(data.get(LAST_PAGE_ID), data.get(LAST_TITLE),
+				Long.parseLong(data.get(DUMP_OFFSET)), Long.parseLong(data.get(PAGES)));
+		checkpoint.setCurrentId(Integer.parseInt(data.get(CURRENT_ID)));
+		return checkpoint;
+	}
+
+	public Map<String, String> toCommitData() {
+		Map<String, String> data = new HashMap<String, String>();
+		if (lastPageId != null)
+			data.put(LAST_PAGE_ID, lastPageId);
+		if (lastTitle != null)
+			data.put(LAST_TITLE, lastTitle);
+		data.put(CURRENT_ID, Integer.toString(currentId));
+		data.put(DUMP_OFFSET, Long.toString(dumpOffset));
+		data.put(PAGES, Long.toString(pages));
+		return data;
+	}
+
+	public String getLastPageId() {
+		return lastPageId;
+	}
+
+	public String getLastTitle() {
+		return lastTitle;
+	}
+
+	public int getCurrentId() {
+		return currentId;
+	}
+
+	public void setCurrentId(int currentId) {
+		this.currentId = currentId;
+	}
+
+	public long getDumpOffset() {
+		return dumpOffset;
+	}
+
+	public long getPages() {
+		return pages;
+	}
+
+	@Override
+	public String toString() {
+		return "pages=" + pages + ", lastTitle=" + lastTitle + ", currentId=" + currentId + ", dumpOffset="
+				+ dumpOffset;
+	}
+
+}
@@ -0,0 +1,104 @@
+package markpeng.wiki;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.utils.CountingInputStream;
+import org.xml.sax.SAXException;
+
+import info.bliki.wiki.dump.IArticleFilter;
+import info.bliki.wiki.dump.Siteinfo;
+import info.bliki.wiki.dump.WikiArticle;
+import info.bliki.wiki.dump.WikiXMLParser;
+
+/**
+ * Parses a single stream dump (.xml, .xml.gz or .xml.bz2) into the indexer
+ * and commits a {@link Checkpoint} every checkpoint interval. When resuming,
+ * the pages up to the checkpointed page still have to be decompressed and
+ * parsed (a bz2 stream cannot be entered in the middle), but they are skipped
+ * before any keyword scan or analysis.
+ */
+public class CheckpointingDumpParser implements IArticleFilter {
+
+	private final String dumpPath;
+	private final WikipediaToLuceneIndex handler;
+	private final long intervalMillis;
+
+	private CountingInputStream compressedBytes;
+	private long pages = 0;
+	private String lastPageId = null;
+	private String lastTitle = null;
+	private long lastCheckpoint = System.currentTimeMillis();
+
+	// dump page id to skip up to (inclusive), null once caught up
+	private String resumeAfterPageId = null;
+
+	public CheckpointingDumpParser(String dumpPath, WikipediaToLuceneIndex handler, long intervalMillis) {
+		this.dumpPath = dumpPath;
+		this.handler = handler;
+		this.intervalMillis = intervalMillis;
+	}
+
+	public void resumeFrom(Checkpoint checkpoint) {
+		resumeAfterPageId = checkpoint.getLastPageId();
+		lastPageId = checkpoint.getLastPageId();
+		lastTitle = checkpoint.getLastTitle();
+	}
+
+	public void parse() throws IOException, SAXException {
+		compressedBytes = new CountingInputStream(new FileInputStream(dumpPath));
+		InputStream in = new BufferedInputStream(compressedBytes);
+		if (dumpPath.endsWith(".bz2"))
+			in = new BZip2CompressorInputStream(in, true);
+		else if (dumpPath.endsWith(".gz"))
+			in = new GZIPInputStream(in);
+
+		Reader reader = new InputStreamReader(in, "UTF-8");
+		try {
+			new WikiXMLParser(reader, this).parse();
+		} finally {
+			reader.close();
+		}
+
+		if (resumeAfterPageId != null)
+			System.err.println("Checkpointed page " + resumeAfterPageId + " was not found in " + dumpPath);
+		else
+			handler.checkpoint(currentCheckpoint());
+	}
+
+	@Override
+	public void process(WikiArticle page, Siteinfo info) throws SAXException {
+		pages++;
+		if (resumeAfterPageId != null) {
+			if (resumeAfterPageId.equals(page.getId())) {
+				resumeAfterPageId = null;
+				System.out.println("Resuming after " + page.getTitle() + " (page " + pages + ")");
+			}
+			return;
+		}
+
+		handler.process(page, info);
+		lastPageId = page.getId();
+		lastTitle = page.getTitle();
+
+		if (intervalMillis > 0 && System.currentTimeMillis() - lastCheckpoint >= intervalMillis) {
+			try {
+				handler.checkpoint(currentCheckpoint());
+			} catch (IOException e) {
+				throw new SAXException("Checkpoint failed at " + lastTitle, e);
+			}
+			lastCheckpoint = System.currentTimeMillis();
+		}
+	}
+
+	private Checkpoint currentCheckpoint() {
+		return new Checkpoint(lastPageId, lastTitle, compressedBytes.getBytesRead(), pages);
+	}
+
+}
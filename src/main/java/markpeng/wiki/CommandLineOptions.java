@@ -0,0 +1,63 @@
+package markpeng.wiki;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits command line arguments into positional arguments and optional
+ * <code>--name=value</code> (or bare <code>--name</code>) switches.
+ */
+public class CommandLineOptions {
+
+	private List<String> positional = new ArrayList<String>();
+	private Map<String, String> options = new HashMap<String, String>();
+
+	public CommandLineOptions(String[] args) {
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				if (eq > 0)
+					options.put(arg.substring(2, eq), arg.substring(eq + 1));
+				else
+					options.put(arg.substring(2), "true");
+			} else
+				positional.add(arg);
+		}
+	}
+
+	public List<String> getPositional() {
+		return positional;
+	}
+
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	public String getString(String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	public int getInt(String name, int defaultValue) {
+		String value = options.get(name);
+		return value != null ? Integer.parseInt(value) : defaultValue;
+	}
+
+	public long getLong(String name, long defaultValue) {
+		String value = options.get(name);
+		return value != null ? Long.parseLong(value) : defaultValue;
+	}
+
+	public double getDouble(String name, double defaultValue) {
+		String value = options.get(name);
+		return value != null ? Double.parseDouble(value) : defaultValue;
+	}
+
+	public boolean getBoolean(String name, boolean defaultValue) {
+		String value = options.get(name);
+		return value != null ? Boolean.parseBoolean(value) : defaultValue;
+	}
+
+}
@@ -0,0 +1,226 @@
+package markpeng.wiki;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Brings an index into the page cache before the first question instead of
+ * during it: preloads whole index files, walks the term dictionary of the
+ * searched fields and reads the postings of the terms that were hot in
+ * previous runs. Hot terms are counted while questions run and saved as
+ * <code>field TAB term TAB count</code> lines for the next run.
+ */
+public class IndexWarmer {
+
+	public static final String HOT_TERMS_FILE = "hot-terms.txt";
+
+	private static final long CHUNK_SIZE = 1L << 30;
+
+	// term -> times it was searched in this run
+	private final Map<Term, AtomicInteger> searchedTerms = new HashMap<Term, AtomicInteger>();
+
+	/**
+	 * Maps the index files (of the folder and its shard folders) with the
+	 * given extensions, or all of them if null, and loads them into memory.
+	 *
+	 * @return bytes loaded
+	 */
+	public long preload(File indexFolder, Set<String> extensions) throws IOException {
+		List<File> folders = new ArrayList<File>();
+		folders.add(indexFolder);
+		folders.addAll(ShardedIndexBuilder.listShards(indexFolder));
+
+		long bytes = 0;
+		for (File folder : folders) {
+			File[] files = folder.listFiles();
+			if (files == null)
+				continue;
+			for (File file : files) {
+				if (file.isFile() && isIndexFile(file.getName(), extensions))
+					bytes += load(file);
+			}
+		}
+		return bytes;
+	}
+
+	private static boolean isIndexFile(String name, Set<String> extensions) {
+		if (name.equals(HOT_TERMS_FILE) || name.equals(ScoreCacheFile.DEFAULT_FILE) || name.equals("write.lock"))
+			return false;
+		if (extensions == null)
+			return true;
+		int dot = name.lastIndexOf('.');
+		return dot >= 0 && extensions.contains(name.substring(dot + 1));
+	}
+
+	private static long load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			for (long start = 0; start < size; start += CHUNK_SIZE) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(CHUNK_SIZE, size - start));
+				buffer.load();
+			}
+			return size;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Walks the whole term dictionary of the fields and the first posting of
+	 * every term.
+	 *
+	 * @return terms visited
+	 */
+	public long touchTerms(IndexReader reader, String... fields) throws IOException {
+		long terms = 0;
+		for (AtomicReaderContext leaf : reader.leaves()) {
+			for (String field : fields) {
+				Terms fieldTerms = leaf.reader().terms(field);
+				if (fieldTerms == null)
+					continue;
+				TermsEnum termsEnum = fieldTerms.iterator(null);
+				DocsEnum docs = null;
+				while (termsEnum.next() != null) {
+					docs = termsEnum.docs(null, docs, DocsEnum.FLAG_NONE);
+					docs.nextDoc();
+					terms++;
+				}
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Reads the complete postings, with frequencies, of the hot terms in the
+	 * file.
+	 *
+	 * @return postings read
+	 */
+	public long touchHotTerms(IndexReader reader, File hotTermsFile) throws IOException {
+		List<Term> hotTerms = readHotTerms(hotTermsFile);
+		long postings = 0;
+		for (AtomicReaderContext leaf : reader.leaves()) {
+			TermsEnum termsEnum = null;
+			String termsField = null;
+			DocsEnum docs = null;
+			for (Term term : hotTerms) {
+				if (!term.field().equals(termsField)) {
+					Terms fieldTerms = leaf.reader().terms(term.field());
+					termsEnum = fieldTerms != null ? fieldTerms.iterator(termsEnum) : null;
+					termsField = term.field();
+				}
+				if (termsEnum == null || !termsEnum.seekExact(term.bytes()))
+					continue;
+				docs = termsEnum.docs(null, docs, DocsEnum.FLAG_FREQS);
+				while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+					docs.freq();
+					postings++;
+				}
+			}
+		}
+		return postings;
+	}
+
+	private static List<Term> readHotTerms(File file) throws IOException {
+		List<Term> terms = new ArrayList<Term>();
+		if (!file.exists())
+			return terms;
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t");
+				if (parts.length >= 2)
+					terms.add(new Term(parts[0], parts[1]));
+			}
+		} finally {
+			reader.close();
+		}
+		// field by field, so a terms enum is reused
+		Collections.sort(terms);
+		return terms;
+	}
+
+	public synchronized void countSearched(Set<Term> terms) {
+		for (Term term : terms) {
+			AtomicInteger count = searchedTerms.get(term);
+			if (count == null)
+				searchedTerms.put(term, new AtomicInteger(1));
+			else
+				count.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Adds the counts of this run to those in the file and keeps the most
+	 * searched terms.
+	 */
+	public synchronized void saveHotTerms(File file, int maxTerms) throws IOException {
+		final Map<Term, Integer> counts = new HashMap<Term, Integer>();
+		if (file.exists()) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] parts = line.split("\t");
+					if (parts.length == 3)
+						counts.put(new Term(parts[0], parts[1]), Integer.parseInt(parts[2]));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		for (Map.Entry<Term, AtomicInteger> e : searchedTerms.entrySet()) {
+			Integer count = counts.get(e.getKey());
+			counts.put(e.getKey(), (count != null ? count : 0) + e.getValue().get());
+		}
+
+		List<Term> terms = new ArrayList<Term>(counts.keySet());
+		Collections.sort(terms, new Comparator<Term>() {
+			@Override
+			public int compare(Term a, Term b) {
+				int byCount = counts.get(b).compareTo(counts.get(a));
+				return byCount != 0 ? byCount : a.compareTo(b);
+			}
+		});
+
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			for (Term term : terms.subList(0, Math.min(maxTerms, terms.size()))) {
+				BytesRef bytes = term.bytes();
+				out.println(term.field() + "\t" + bytes.utf8ToString() + "\t" + counts.get(term));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,271 @@
+package markpeng.wiki;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+
+/**
+ * Counters and stage timings of an indexing run, shared by every thread (and
+ * every shard) of the run. Stage times are summed over threads, so with
+ * parallel indexing they add up to more than the wall time. Analysis runs
+ * inside addDocument and is timed on a sample of the token streams only,
+ * then extrapolated over all tokens, so the other streams pay nothing but a
+ * token count.
+ */
+public class IndexingStats {
+
+	// time one token stream in this many; odd, so title and text streams
+	// which alternate are both sampled
+	private static final int ANALYSIS_SAMPLE_RATE = 7;
+
+	private final long startNanos = System.nanoTime();
+	private volatile long endNanos = 0;
+
+	private final AtomicLong pages = new AtomicLong();
+	private final AtomicLong filtered = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong docs = new AtomicLong();
+	private final AtomicLong textChars = new AtomicLong();
+	private final AtomicLong checkpoints = new AtomicLong();
+
+	private final AtomicLong parseNanos = new AtomicLong();
+	private final AtomicLong filterNanos = new AtomicLong();
+	private final AtomicLong stripNanos = new AtomicLong();
+	private final AtomicLong addDocumentNanos = new AtomicLong();
+	private final AtomicLong commitNanos = new AtomicLong();
+
+	private final AtomicLong tokenStreams = new AtomicLong();
+	private final AtomicLong tokens = new AtomicLong();
+	private final AtomicLong sampledTokens = new AtomicLong();
+	private final AtomicLong sampledAnalysisNanos = new AtomicLong();
+
+	private final List<BlockingQueue<?>> queues = new CopyOnWriteArrayList<BlockingQueue<?>>();
+	private final AtomicLong queueSamples = new AtomicLong();
+	private final AtomicLong queueDepthSum = new AtomicLong();
+	private volatile int maxQueueDepth = 0;
+
+	private Thread reporter = null;
+
+	public void page(long chars) {
+		pages.incrementAndGet();
+		textChars.addAndGet(chars);
+	}
+
+	public void filtered() {
+		filtered.incrementAndGet();
+	}
+
+	public void skipped() {
+		skipped.incrementAndGet();
+	}
+
+	public void parsed(long nanos) {
+		parseNanos.addAndGet(nanos);
+	}
+
+	public void filterTime(long nanos) {
+		filterNanos.addAndGet(nanos);
+	}
+
+	public void stripTime(long nanos) {
+		stripNanos.addAndGet(nanos);
+	}
+
+	public void added(long nanos) {
+		docs.incrementAndGet();
+		addDocumentNanos.addAndGet(nanos);
+	}
+
+	public void committed(long nanos) {
+		checkpoints.incrementAndGet();
+		commitNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Includes the queue in the depth samples of the periodic summary.
+	 */
+	public void watchQueue(BlockingQueue<?> queue) {
+		queues.add(queue);
+	}
+
+	/**
+	 * Last filter of the analysis chain, counting tokens and timing the
+	 * sampled streams.
+	 */
+	public TokenStream timeAnalysis(TokenStream input) {
+		return new AnalysisTimer(input);
+	}
+
+	private long analysisNanos() {
+		long sampled = sampledTokens.get();
+		if (sampled == 0)
+			return 0;
+		return (long) ((double) sampledAnalysisNanos.get() * tokens.get() / sampled);
+	}
+
+	/**
+	 * Prints a summary line every interval until {@link #stop()}.
+	 */
+	public void startReporter(final long intervalMillis) {
+		if (intervalMillis <= 0)
+			return;
+
+		reporter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long lastDocs = 0;
+				long lastChars = 0;
+				long last = System.nanoTime();
+				try {
+					while (true) {
+						Thread.sleep(intervalMillis);
+						int depth = sampleQueues();
+						long now = System.nanoTime();
+						long d = docs.get();
+						long c = textChars.get();
+						double seconds = (now - last) / 1e9;
+						System.out.println(String.format(
+								"Progress: %d pages, %d docs (%.0f docs/s, %.1f M chars/s), %d filtered, %d skipped"
+										+ (queues.isEmpty() ? "" : ", queue depth %d"),
+								pages.get(), d, (d - lastDocs) / seconds, (c - lastChars) / seconds / 1e6,
+								filtered.get(), skipped.get(), depth));
+						lastDocs = d;
+						lastChars = c;
+						last = now;
+					}
+				} catch (InterruptedException e) {
+					// stopped
+				}
+			}
+		}, "indexing-stats");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	private int sampleQueues() {
+		if (queues.isEmpty())
+			return 0;
+
+		int depth = 0;
+		for (BlockingQueue<?> queue : queues)
+			depth += queue.size();
+		queueSamples.incrementAndGet();
+		queueDepthSum.addAndGet(depth);
+		if (depth > maxQueueDepth)
+			maxQueueDepth = depth;
+		return depth;
+	}
+
+	/**
+	 * Stops the reporter and the clock.
+	 */
+	public void stop() {
+		endNanos = System.nanoTime();
+		if (reporter != null) {
+			reporter.interrupt();
+			reporter = null;
+		}
+	}
+
+	private double elapsedSeconds() {
+		return ((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos) / 1e9;
+	}
+
+	public String report() {
+		double seconds = elapsedSeconds();
+		long samples = queueSamples.get();
+		return String.format("Indexing: %d docs from %d pages in %.1f s (%.0f docs/s, %.1f M chars/s of page text), "
+				+ "%d filtered, %d skipped%n"
+				+ "Thread time: parse %.1f s, filter %.1f s, strip %.1f s, analysis ~%.1f s, "
+				+ "addDocument w/o analysis %.1f s, %d commits %.1f s"
+				+ (samples > 0 ? "%nQueue depth: avg %.1f, max %d" : ""), docs.get(), pages.get(), seconds,
+				docs.get() / seconds, textChars.get() / seconds / 1e6, filtered.get(), skipped.get(),
+				parseNanos.get() / 1e9, filterNanos.get() / 1e9, stripNanos.get() / 1e9, analysisNanos() / 1e9,
+				(addDocumentNanos.get() - analysisNanos()) / 1e9, checkpoints.get(), commitNanos.get() / 1e9,
+				samples > 0 ? (double) queueDepthSum.get() / samples : 0.0, maxQueueDepth);
+	}
+
+	/**
+	 * Writes the stats as <code>name=value</code> lines, times in
+	 * milliseconds.
+	 */
+	public void writeTo(File file) throws IOException {
+		long analysis = analysisNanos();
+		long samples = queueSamples.get();
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			out.println("elapsedMillis=" + (long) (elapsedSeconds() * 1000));
+			out.println("pages=" + pages.get());
+			out.println("filtered=" + filtered.get());
+			out.println("skipped=" + skipped.get());
+			out.println("docs=" + docs.get());
+			out.println("textChars=" + textChars.get());
+			out.println("tokens=" + tokens.get());
+			out.println("docsPerSec=" + (long) (docs.get() / elapsedSeconds()));
+			out.println("charsPerSec=" + (long) (textChars.get() / elapsedSeconds()));
+			out.println("parseMillis=" + parseNanos.get() / 1000000);
+			out.println("filterMillis=" + filterNanos.get() / 1000000);
+			out.println("stripMillis=" + stripNanos.get() / 1000000);
+			out.println("analysisMillis=" + analysis / 1000000);
+			out.println("addDocumentMillis=" + (addDocumentNanos.get() - analysis) / 1000000);
+			out.println("commits=" + checkpoints.get());
+			out.println("commitMillis=" + commitNanos.get() / 1000000);
+			out.println("queueDepthAvg=" + (samples > 0 ? (double) queueDepthSum.get() / samples : 0));
+			out.println("queueDepthMax=" + maxQueueDepth);
+		} finally {
+			out.close();
+		}
+	}
+
+	private final class AnalysisTimer extends TokenFilter {
+
+		private boolean timed;
+		private long streamTokens;
+		private long streamNanos;
+
+		AnalysisTimer(TokenStream input) {
+			super(input);
+		}
+
+		@Override
+		public void reset() throws IOException {
+			super.reset();
+			timed = tokenStreams.getAndIncrement() % ANALYSIS_SAMPLE_RATE == 0;
+			streamTokens = 0;
+			streamNanos = 0;
+		}
+
+		@Override
+		public boolean incrementToken() throws IOException {
+			boolean more;
+			if (timed) {
+				long start = System.nanoTime();
+				more = input.incrementToken();
+				streamNanos += System.nanoTime() - start;
+			} else
+				more = input.incrementToken();
+			if (more)
+				streamTokens++;
+			return more;
+		}
+
+		@Override
+		public void end() throws IOException {
+			super.end();
+			tokens.addAndGet(streamTokens);
+			if (timed) {
+				sampledTokens.addAndGet(streamTokens);
+				sampledAnalysisNanos.addAndGet(streamNanos);
+			}
+		}
+
+	}
+
+}
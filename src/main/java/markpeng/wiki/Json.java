@@ -0,0 +1,265 @@
+package markpeng.wiki;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the question service: parses objects into maps (in
+ * document order), arrays into lists, numbers into doubles, and writes the
+ * same types back, as well as any other Number. Objects and arrays nest at
+ * most {@value #MAX_DEPTH} levels deep, so that parsing cannot overflow the
+ * stack.
+ */
+public class Json {
+
+	public static final int MAX_DEPTH = 256;
+
+	private final String text;
+	private int pos = 0;
+	private int depth = 0;
+
+	private Json(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the text is not a single JSON value
+	 */
+	public static Object parse(String text) {
+		Json json = new Json(text);
+		Object value = json.value();
+		json.skipSpace();
+		if (json.pos < text.length())
+			throw json.error("Unexpected text after the value");
+		return value;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at offset " + pos);
+	}
+
+	private void skipSpace() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+	}
+
+	private char next() {
+		skipSpace();
+		if (pos >= text.length())
+			throw error("Unexpected end of JSON");
+		return text.charAt(pos);
+	}
+
+	private void expect(char c) {
+		if (next() != c)
+			throw error("Expected '" + c + "'");
+		pos++;
+	}
+
+	private Object value() {
+		char c = next();
+		if (c == '{' || c == '[') {
+			if (++depth > MAX_DEPTH)
+				throw error("Nested deeper than " + MAX_DEPTH + " levels");
+			Object value = c == '{' ? object() : array();
+			depth--;
+			return value;
+		}
+		if (c == '"')
+			return string();
+		if (text.startsWith("true", pos)) {
+			pos += 4;
+			return Boolean.TRUE;
+		}
+		if (text.startsWith("false", pos)) {
+			pos += 5;
+			return Boolean.FALSE;
+		}
+		if (text.startsWith("null", pos)) {
+			pos += 4;
+			return null;
+		}
+		return number();
+	}
+
+	private Map<String, Object> object() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		expect('{');
+		if (next() == '}') {
+			pos++;
+			return map;
+		}
+		while (true) {
+			if (next() != '"')
+				throw error("Expected a member name");
+			String name = string();
+			expect(':');
+			map.put(name, value());
+			if (next() == ',') {
+				pos++;
+				continue;
+			}
+			expect('}');
+			return map;
+		}
+	}
+
+	private List<Object> array() {
+		List<Object> list = new ArrayList<Object>();
+		expect('[');
+		if (next() == ']') {
+			pos++;
+			return list;
+		}
+		while (true) {
+			list.add(value());
+			if (next() == ',') {
+				pos++;
+				continue;
+			}
+			expect(']');
+			return list;
+		}
+	}
+
+	private String string() {
+		expect('"');
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			if (pos >= text.length())
+				throw error("Unterminated string");
+			char c = text.charAt(pos++);
+			if (c == '"')
+				return sb.toString();
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			if (pos >= text.length())
+				throw error("Unterminated string");
+			char escaped = text.charAt(pos++);
+			switch (escaped) {
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'u':
+				if (pos + 4 > text.length())
+					throw error("Bad unicode escape");
+				try {
+					sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("Bad unicode escape");
+				}
+				pos += 4;
+				break;
+			default:
+				// \" \\ \/
+				sb.append(escaped);
+			}
+		}
+	}
+
+	private Double number() {
+		int start = pos;
+		while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+			pos++;
+		try {
+			return Double.valueOf(text.substring(start, pos));
+		} catch (NumberFormatException e) {
+			pos = start;
+			throw error("Unexpected character '" + text.charAt(pos) + "'");
+		}
+	}
+
+	public static String write(Object value) {
+		StringBuilder sb = new StringBuilder();
+		write(value, sb);
+		return sb.toString();
+	}
+
+	public static void write(Object value, StringBuilder sb) {
+		if (value == null)
+			sb.append("null");
+		else if (value instanceof String)
+			quote((String) value, sb);
+		else if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			// JSON has no NaN or infinity
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				sb.append("null");
+			else
+				sb.append(d);
+		} else if (value instanceof Number || value instanceof Boolean)
+			sb.append(value);
+		else if (value instanceof Map) {
+			sb.append('{');
+			Iterator<?> entries = ((Map<?, ?>) value).entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<?, ?> entry = (Map.Entry<?, ?>) entries.next();
+				quote(String.valueOf(entry.getKey()), sb);
+				sb.append(':');
+				write(entry.getValue(), sb);
+				if (entries.hasNext())
+					sb.append(',');
+			}
+			sb.append('}');
+		} else if (value instanceof List) {
+			sb.append('[');
+			Iterator<?> values = ((List<?>) value).iterator();
+			while (values.hasNext()) {
+				write(values.next(), sb);
+				if (values.hasNext())
+					sb.append(',');
+			}
+			sb.append(']');
+		} else
+			quote(value.toString(), sb);
+	}
+
+	private static void quote(String s, StringBuilder sb) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+}
@@ -0,0 +1,179 @@
+package markpeng.wiki;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton over chars. Built once from the keyword list, it
+ * finds every (case sensitive) keyword occurrence in a single pass over the
+ * text, so the cost per article no longer grows with the number of keywords.
+ * Immutable after construction and safe to share between indexing threads.
+ */
+public class KeywordMatcher {
+
+	private static final int ROOT = 0;
+
+	private final String[] keywords;
+
+	// per state: sorted outgoing chars and their target states
+	private final char[][] labels;
+	private final int[][] targets;
+	private final int[] failure;
+	// keyword ending exactly at this state, or -1
+	private final int[] terminal;
+	// nearest state on the failure chain with terminal >= 0, or -1
+	private final int[] dictionaryLink;
+	// dense transitions out of the root, where the scan spends most chars
+	private final int[] rootTargets = new int[Character.MAX_VALUE + 1];
+
+	public KeywordMatcher(Collection<String> keywords) {
+		List<String> unique = new ArrayList<String>();
+		List<Map<Character, Integer>> trie = new ArrayList<Map<Character, Integer>>();
+		List<Integer> terminals = new ArrayList<Integer>();
+		trie.add(new HashMap<Character, Integer>());
+		terminals.add(-1);
+
+		for (String keyword : keywords) {
+			if (keyword.isEmpty())
+				continue;
+			int state = ROOT;
+			for (int i = 0; i < keyword.length(); i++) {
+				Character c = keyword.charAt(i);
+				Integer next = trie.get(state).get(c);
+				if (next == null) {
+					next = trie.size();
+					trie.add(new HashMap<Character, Integer>());
+					terminals.add(-1);
+					trie.get(state).put(c, next);
+				}
+				state = next;
+			}
+			if (terminals.get(state) < 0) {
+				terminals.set(state, unique.size());
+				unique.add(keyword);
+			}
+		}
+
+		int size = trie.size();
+		this.keywords = unique.toArray(new String[unique.size()]);
+		labels = new char[size][];
+		targets = new int[size][];
+		failure = new int[size];
+		terminal = new int[size];
+		dictionaryLink = new int[size];
+
+		for (int s = 0; s < size; s++) {
+			terminal[s] = terminals.get(s);
+			Map<Character, Integer> edges = trie.get(s);
+			char[] chars = new char[edges.size()];
+			int n = 0;
+			for (Character c : edges.keySet())
+				chars[n++] = c;
+			Arrays.sort(chars);
+			int[] next = new int[chars.length];
+			for (int i = 0; i < chars.length; i++)
+				next[i] = edges.get(chars[i]);
+			labels[s] = chars;
+			targets[s] = next;
+		}
+
+		for (int i = 0; i < labels[ROOT].length; i++)
+			rootTargets[labels[ROOT][i]] = targets[ROOT][i];
+
+		// breadth first so that failure links of shorter prefixes exist first
+		int[] queue = new int[size];
+		int head = 0, tail = 0;
+		failure[ROOT] = ROOT;
+		dictionaryLink[ROOT] = -1;
+		for (int child : targets[ROOT]) {
+			failure[child] = ROOT;
+			dictionaryLink[child] = -1;
+			queue[tail++] = child;
+		}
+		while (head < tail) {
+			int state = queue[head++];
+			for (int i = 0; i < labels[state].length; i++) {
+				char c = labels[state][i];
+				int child = targets[state][i];
+				int f = failure[state];
+				int next;
+				while ((next = step(f, c)) < 0 && f != ROOT)
+					f = failure[f];
+				failure[child] = next >= 0 ? next : ROOT;
+				int fc = failure[child];
+				dictionaryLink[child] = terminal[fc] >= 0 ? fc : dictionaryLink[fc];
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	private int step(int state, char c) {
+		int i = Arrays.binarySearch(labels[state], c);
+		return i >= 0 ? targets[state][i] : -1;
+	}
+
+	private int transition(int state, char c) {
+		int next;
+		while (state != ROOT) {
+			if ((next = step(state, c)) >= 0)
+				return next;
+			state = failure[state];
+		}
+		return rootTargets[c];
+	}
+
+	/**
+	 * @return true as soon as any keyword occurs in the text
+	 */
+	public boolean matches(CharSequence text) {
+		if (keywords.length == 0)
+			return false;
+
+		int state = ROOT;
+		for (int i = 0; i < text.length(); i++) {
+			state = transition(state, text.charAt(i));
+			if (terminal[state] >= 0 || dictionaryLink[state] >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return each keyword occurring in the text with its number of
+	 *         (possibly overlapping) occurrences, in keyword file order
+	 */
+	public Map<String, Integer> countMatches(CharSequence text) {
+		int[] counts = new int[keywords.length];
+		int state = ROOT;
+		for (int i = 0; i < text.length(); i++) {
+			state = transition(state, text.charAt(i));
+			int s = terminal[state] >= 0 ? state : dictionaryLink[state];
+			while (s >= 0) {
+				counts[terminal[s]]++;
+				s = dictionaryLink[s];
+			}
+		}
+
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		for (int k = 0; k < counts.length; k++) {
+			if (counts[k] > 0)
+				result.put(keywords[k], counts[k]);
+		}
+		return result;
+	}
+
+	public int size() {
+		return keywords.length;
+	}
+
+	public List<String> getKeywords() {
+		return Collections.unmodifiableList(Arrays.asList(keywords));
+	}
+
+}
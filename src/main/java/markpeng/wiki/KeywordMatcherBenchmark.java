@@ -0,0 +1,84 @@
+package markpeng.wiki;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the old per keyword String.contains scan with
+ * {@link KeywordMatcher} for growing keyword counts. Articles contain no
+ * keyword, which is the common (and worst) case for both: every article is
+ * scanned to the end.
+ */
+public class KeywordMatcherBenchmark {
+
+	private static String randomWord(Random random, int minLength, int maxLength) {
+		int length = minLength + random.nextInt(maxLength - minLength + 1);
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char) ('a' + random.nextInt(26));
+		return new String(chars);
+	}
+
+	private static boolean linearScan(List<String> keywords, String text) {
+		for (String keyword : keywords) {
+			if (text.contains(keyword))
+				return true;
+		}
+		return false;
+	}
+
+	public static void main(String[] args) {
+		// java -cp lucene-wikipedia-0.0.1-jar-with-dependencies.jar
+		// markpeng.wiki.KeywordMatcherBenchmark 200 20000
+
+		int articleCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int articleLength = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		Random random = new Random(42);
+		List<String> articles = new ArrayList<String>();
+		for (int i = 0; i < articleCount; i++) {
+			StringBuilder sb = new StringBuilder(articleLength + 16);
+			while (sb.length() < articleLength)
+				sb.append(randomWord(random, 2, 7)).append(' ');
+			articles.add(sb.toString());
+		}
+
+		System.out.println("keywords\tlinear(ms)\tautomaton(ms)\tspeedup");
+		for (int keywordCount = 10; keywordCount <= 10000; keywordCount *= 10) {
+			// longer than any article word, so nothing matches
+			Set<String> unique = new LinkedHashSet<String>();
+			while (unique.size() < keywordCount)
+				unique.add(randomWord(random, 9, 14));
+			List<String> keywords = new ArrayList<String>(unique);
+			KeywordMatcher matcher = new KeywordMatcher(keywords);
+
+			// warm up both paths and check they agree
+			for (String text : articles) {
+				if (linearScan(keywords, text) != matcher.matches(text))
+					throw new IllegalStateException("Matchers disagree");
+			}
+
+			long start = System.nanoTime();
+			int hits = 0;
+			for (String text : articles) {
+				if (linearScan(keywords, text))
+					hits++;
+			}
+			long linear = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (String text : articles) {
+				if (matcher.matches(text))
+					hits++;
+			}
+			long automaton = System.nanoTime() - start;
+
+			System.out.println(keywordCount + "\t" + linear / 1000000 + "\t" + automaton / 1000000 + "\t"
+					+ String.format("%.1fx", (double) linear / automaton) + (hits > 0 ? "\t(hits " + hits + ")" : ""));
+		}
+	}
+
+}
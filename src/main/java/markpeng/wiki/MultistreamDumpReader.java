@@ -0,0 +1,399 @@
+package markpeng.wiki;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.xml.sax.SAXException;
+
+import info.bliki.wiki.dump.IArticleFilter;
+import info.bliki.wiki.dump.Siteinfo;
+import info.bliki.wiki.dump.WikiArticle;
+import info.bliki.wiki.dump.WikiXMLParser;
+
+/**
+ * Reads a <code>pages-articles-multistream.xml.bz2</code> dump through its
+ * companion <code>multistream-index.txt(.bz2)</code>. Every bz2 stream listed
+ * in the index holds about 100 complete pages, so streams are decompressed and
+ * parsed independently on a thread pool. Pages reach the filter concurrently
+ * and in no particular order, or with {@link #parseInOrder} on the calling
+ * thread in dump order.
+ */
+public class MultistreamDumpReader {
+
+	/**
+	 * Called with no stream in flight, every stream before the given offset
+	 * having been handed to the filter.
+	 */
+	public interface CheckpointListener {
+		void checkpoint(long nextStreamOffset, long pages) throws IOException;
+	}
+
+	private static final byte[] FOOTER = "</mediawiki>\n".getBytes();
+
+	private final String dumpPath;
+	private final long dumpLength;
+
+	// start offset of every page stream, ascending
+	private final long[] offsets;
+	// number of pages in each stream, parallel to offsets
+	private final int[] pageCounts;
+	private final Map<String, Long> titleOffsets = new HashMap<String, Long>();
+
+	// the <mediawiki><siteinfo> prologue stream, prepended to every stream
+	private final byte[] header;
+
+	private long[] selectedOffsets;
+	private Set<String> selectedTitles = null;
+
+	public MultistreamDumpReader(String dumpPath, String indexPath) throws IOException {
+		this.dumpPath = dumpPath;
+
+		TreeMap<Long, Integer> distinct = new TreeMap<Long, Integer>();
+		BufferedReader reader = openIndex(indexPath);
+		try {
+			String aLine;
+			while ((aLine = reader.readLine()) != null) {
+				// offset:pageId:title, the title itself may contain ':'
+				int first = aLine.indexOf(':');
+				int second = first > 0 ? aLine.indexOf(':', first + 1) : -1;
+				if (second < 0)
+					continue;
+				Long offset = Long.parseLong(aLine.substring(0, first));
+				Integer count = distinct.get(offset);
+				distinct.put(offset, count == null ? 1 : count + 1);
+				titleOffsets.put(aLine.substring(second + 1), offset);
+			}
+		} finally {
+			reader.close();
+		}
+
+		offsets = new long[distinct.size()];
+		pageCounts = new int[distinct.size()];
+		int i = 0;
+		for (Map.Entry<Long, Integer> e : distinct.entrySet()) {
+			offsets[i] = e.getKey();
+			pageCounts[i++] = e.getValue();
+		}
+		selectedOffsets = offsets;
+
+		RandomAccessFile file = new RandomAccessFile(dumpPath, "r");
+		try {
+			dumpLength = file.length();
+			header = offsets.length > 0 ? decompress(readRange(file.getChannel(), 0, offsets[0])) : new byte[0];
+		} finally {
+			file.close();
+		}
+	}
+
+	private static BufferedReader openIndex(String indexPath) throws IOException {
+		InputStream in = new FileInputStream(indexPath);
+		if (indexPath.endsWith(".bz2"))
+			in = new BZip2CompressorInputStream(in, true);
+		return new BufferedReader(new InputStreamReader(in, "UTF-8"));
+	}
+
+	/**
+	 * Only decompresses the streams holding the given titles and only passes
+	 * those pages on to the filter.
+	 */
+	public void restrictToTitles(Collection<String> titles) {
+		TreeSet<Long> wanted = new TreeSet<Long>();
+		for (String title : titles) {
+			Long offset = titleOffsets.get(title);
+			if (offset != null)
+				wanted.add(offset);
+			else
+				System.err.println("Title not found in multistream index: " + title);
+		}
+
+		selectedOffsets = new long[wanted.size()];
+		int i = 0;
+		for (Long offset : wanted)
+			selectedOffsets[i++] = offset;
+		selectedTitles = new HashSet<String>(titles);
+	}
+
+	public long[] getStreamOffsets() {
+		return selectedOffsets;
+	}
+
+	public int getPageCount() {
+		return titleOffsets.size();
+	}
+
+	/**
+	 * @return the number of pages the index lists for the given streams
+	 */
+	public int countPages(long[] streams) {
+		int total = 0;
+		for (long start : streams)
+			total += pageCounts[Arrays.binarySearch(offsets, start)];
+		return total;
+	}
+
+	/**
+	 * Decodes and parses all selected streams with the given number of
+	 * threads, handing every page to the filter.
+	 */
+	public void parse(IArticleFilter filter, int threads) throws IOException, SAXException {
+		parse(filter, threads, selectedOffsets);
+	}
+
+	public void parse(IArticleFilter filter, int threads, long[] streams) throws IOException, SAXException {
+		parse(filter, threads, streams, null, 0);
+	}
+
+	/**
+	 * @return the given streams starting at or after the offset, for resuming
+	 *         from a checkpoint
+	 */
+	public long[] streamsFrom(long[] streams, long offset) {
+		int i = 0;
+		while (i < streams.length && streams[i] < offset)
+			i++;
+		return Arrays.copyOfRange(streams, i, streams.length);
+	}
+
+	/**
+	 * Like {@link #parse(IArticleFilter, int, long[])}, but every interval
+	 * stops handing out streams, waits for those in flight and reports a
+	 * checkpoint; once more when all streams are done.
+	 */
+	public void parse(IArticleFilter filter, int threads, long[] streams, CheckpointListener listener,
+			long intervalMillis) throws IOException, SAXException {
+		final IArticleFilter target = restrict(filter);
+		RandomAccessFile file = new RandomAccessFile(dumpPath, "r");
+		final FileChannel channel = file.getChannel();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+		// keeps at most two compressed streams per thread in memory
+		final int permits = Math.max(threads, 1) * 2;
+		final Semaphore inFlight = new Semaphore(permits);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		long lastCheckpoint = System.currentTimeMillis();
+		long pages = 0;
+		try {
+			for (final long start : streams) {
+				if (failure.get() != null)
+					break;
+				if (listener != null && intervalMillis > 0
+						&& System.currentTimeMillis() - lastCheckpoint >= intervalMillis) {
+					inFlight.acquire(permits);
+					try {
+						if (failure.get() != null)
+							break;
+						listener.checkpoint(start, pages);
+					} finally {
+						inFlight.release(permits);
+					}
+					lastCheckpoint = System.currentTimeMillis();
+				}
+				pages += pageCounts[Arrays.binarySearch(offsets, start)];
+				inFlight.acquire();
+				final long end = streamEnd(start);
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							parseStream(channel, start, end, target);
+						} catch (Exception e) {
+							failure.compareAndSet(null, e);
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			if (listener != null && failure.get() == null && streams.length > 0)
+				listener.checkpoint(streamEnd(streams[streams.length - 1]), pages);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			pool.shutdownNow();
+			throw new IOException("Interrupted while decoding " + dumpPath, e);
+		} finally {
+			file.close();
+		}
+
+		Exception e = failure.get();
+		if (e != null)
+			rethrow(e);
+	}
+
+	/**
+	 * Like {@link #parse(IArticleFilter, int, long[], CheckpointListener, long)}, but only decodes and parses the
+	 * streams on the thread pool. Their pages are handed to the filter on the calling thread, one stream after the
+	 * other in the given order, so the filter sees the pages in dump order as from a single parser.
+	 */
+	public void parseInOrder(IArticleFilter filter, int threads, long[] streams, CheckpointListener listener,
+			long intervalMillis) throws IOException, SAXException {
+		IArticleFilter target = restrict(filter);
+		RandomAccessFile file = new RandomAccessFile(dumpPath, "r");
+		final FileChannel channel = file.getChannel();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+		// decoded streams waiting for the filter, at most two per thread
+		int ahead = Math.max(threads, 1) * 2;
+		Deque<Future<DecodedStream>> decoded = new ArrayDeque<Future<DecodedStream>>();
+		long lastCheckpoint = System.currentTimeMillis();
+		long pages = 0;
+		try {
+			for (final long start : streams) {
+				if (listener != null && intervalMillis > 0
+						&& System.currentTimeMillis() - lastCheckpoint >= intervalMillis) {
+					while (!decoded.isEmpty())
+						handOver(decoded.removeFirst(), target);
+					listener.checkpoint(start, pages);
+					lastCheckpoint = System.currentTimeMillis();
+				}
+				pages += pageCounts[Arrays.binarySearch(offsets, start)];
+				if (decoded.size() >= ahead)
+					handOver(decoded.removeFirst(), target);
+				final long end = streamEnd(start);
+				decoded.add(pool.submit(new Callable<DecodedStream>() {
+					@Override
+					public DecodedStream call() throws Exception {
+						DecodedStream stream = new DecodedStream();
+						parseStream(channel, start, end, stream);
+						return stream;
+					}
+				}));
+			}
+			while (!decoded.isEmpty())
+				handOver(decoded.removeFirst(), target);
+			if (listener != null && streams.length > 0)
+				listener.checkpoint(streamEnd(streams[streams.length - 1]), pages);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decoding " + dumpPath, e);
+		} finally {
+			pool.shutdownNow();
+			file.close();
+		}
+	}
+
+	private void handOver(Future<DecodedStream> decoded, IArticleFilter filter) throws IOException, SAXException,
+			InterruptedException {
+		DecodedStream stream;
+		try {
+			stream = decoded.get();
+		} catch (ExecutionException e) {
+			rethrow(e.getCause());
+			return;
+		}
+		for (WikiArticle page : stream.pages)
+			filter.process(page, stream.info);
+	}
+
+	private IArticleFilter restrict(final IArticleFilter filter) {
+		return selectedTitles == null ? filter : new IArticleFilter() {
+			@Override
+			public void process(WikiArticle page, Siteinfo info) throws SAXException {
+				if (selectedTitles.contains(page.getTitle()))
+					filter.process(page, info);
+			}
+		};
+	}
+
+	private static void rethrow(Throwable e) throws IOException, SAXException {
+		if (e instanceof IOException)
+			throw (IOException) e;
+		if (e instanceof SAXException)
+			throw (SAXException) e;
+		throw new IOException(e);
+	}
+
+	/**
+	 * The pages of a stream, kept until their turn comes.
+	 */
+	private static class DecodedStream implements IArticleFilter {
+
+		final List<WikiArticle> pages = new ArrayList<WikiArticle>();
+		Siteinfo info;
+
+		@Override
+		public void process(WikiArticle page, Siteinfo info) {
+			pages.add(page);
+			this.info = info;
+		}
+
+	}
+
+	private long streamEnd(long start) {
+		int i = Arrays.binarySearch(offsets, start);
+		return i + 1 < offsets.length ? offsets[i + 1] : dumpLength;
+	}
+
+	private void parseStream(FileChannel channel, long start, long end, IArticleFilter filter)
+			throws IOException, SAXException {
+		byte[] compressed = readRange(channel, start, end);
+		// a single stream only, so the trailing </mediawiki> stream of the
+		// last block is not read twice
+		InputStream pages = new BZip2CompressorInputStream(new ByteArrayInputStream(compressed), false);
+		List<InputStream> parts = new ArrayList<InputStream>();
+		parts.add(new ByteArrayInputStream(header));
+		parts.add(pages);
+		parts.add(new ByteArrayInputStream(FOOTER));
+		Reader reader = new InputStreamReader(new SequenceInputStream(Collections.enumeration(parts)), "UTF-8");
+		try {
+			new WikiXMLParser(reader, filter).parse();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static byte[] readRange(FileChannel channel, long start, long end) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+		long position = start;
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				break;
+			position += n;
+		}
+		return buffer.array();
+	}
+
+	private static byte[] decompress(byte[] compressed) throws IOException {
+		InputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(compressed), false);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			out.write(buffer, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+
+}
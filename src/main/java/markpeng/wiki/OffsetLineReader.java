@@ -0,0 +1,145 @@
+package markpeng.wiki;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the lines of a UTF-8 file, telling the byte offset each line starts
+ * at, so that a later run can seek straight to a line instead of reading up
+ * to it. Lines end at a line feed, a carriage return before it is dropped.
+ * <p>
+ * The file is memory-mapped a window at a time and each line is decoded into
+ * a char buffer reused for every line, directly for ASCII lines.
+ * {@link #nextLine()} returns a view of that buffer, only
+ * {@link #readLine()} copies the line into a String.
+ */
+public class OffsetLineReader implements Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long WINDOW = 64L * 1024 * 1024;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long length;
+	// mapped part of the file and its offset
+	private MappedByteBuffer window;
+	private long windowStart = 0;
+	private long position = 0;
+	private long lineStart = 0;
+	private char[] chars = new char[1024];
+
+	public OffsetLineReader(File file) throws IOException {
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.length = channel.size();
+	}
+
+	/**
+	 * @return offset of the next line
+	 */
+	public long position() {
+		return position;
+	}
+
+	/**
+	 * @return offset of the line last read
+	 */
+	public long lineStart() {
+		return lineStart;
+	}
+
+	/**
+	 * Continues reading at the offset, which should be the start of a line.
+	 */
+	public void seek(long offset) {
+		position = offset;
+	}
+
+	/**
+	 * @return the next line, or null at the end of the file
+	 */
+	public String readLine() throws IOException {
+		CharBuffer line = nextLine();
+		return line != null ? line.toString() : null;
+	}
+
+	/**
+	 * @return the next line, valid until the next line is read, or null at
+	 *         the end of the file
+	 */
+	public CharBuffer nextLine() throws IOException {
+		if (position >= length)
+			return null;
+		lineStart = position;
+
+		map(lineStart, 1);
+		int start = (int) (lineStart - windowStart);
+		int end = start;
+		while (true) {
+			int limit = window.limit();
+			while (end < limit && window.get(end) != '\n')
+				end++;
+			if (end < limit || windowStart + limit == length)
+				break;
+			// the line goes past the window, map more of it from its start
+			map(lineStart, 2L * (end - start) + 1);
+			end -= start;
+			start = 0;
+		}
+		position = windowStart + Math.min(end + 1, window.limit());
+
+		if (end > start && window.get(end - 1) == '\r')
+			end--;
+		return decode(start, end);
+	}
+
+	/**
+	 * Maps a window from the offset if the current one does not hold the
+	 * given number of bytes from it, or the rest of the file.
+	 */
+	private void map(long offset, long minBytes) throws IOException {
+		long end = Math.min(offset + minBytes, length);
+		if (window != null && offset >= windowStart && end <= windowStart + window.limit())
+			return;
+		long size = Math.min(Math.max(WINDOW, minBytes), length - offset);
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Line at " + offset + " longer than " + Integer.MAX_VALUE + " bytes");
+		window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		windowStart = offset;
+	}
+
+	private CharBuffer decode(int start, int end) {
+		int length = end - start;
+		if (chars.length < length)
+			chars = new char[Math.max(length, chars.length * 2)];
+		for (int i = 0; i < length; i++) {
+			byte b = window.get(start + i);
+			if (b < 0)
+				return decodeUtf8(start, end);
+			chars[i] = (char) b;
+		}
+		return CharBuffer.wrap(chars, 0, length);
+	}
+
+	private CharBuffer decodeUtf8(int start, int end) {
+		ByteBuffer bytes = window.duplicate();
+		bytes.limit(end);
+		bytes.position(start);
+		return UTF8.decode(bytes);
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+		raf.close();
+	}
+
+}
@@ -0,0 +1,137 @@
+package markpeng.wiki;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import info.bliki.wiki.dump.WikiArticle;
+
+/**
+ * Rejects pages from their metadata before any keyword scan or analysis:
+ * pages outside the wanted namespaces, redirects, titles matching a pattern
+ * and pages shorter than a minimum length. Each rule only looks at the
+ * namespace, the title, the text length or the first characters of the text.
+ * Counts how many pages each rule dropped; safe to share between threads.
+ */
+public class PageFilter {
+
+	// null accepts every namespace
+	private Set<Integer> namespaces = null;
+	private boolean skipRedirects = false;
+	private Pattern skipTitles = null;
+	private int minTextLength = 0;
+
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong droppedNamespace = new AtomicLong();
+	private final AtomicLong droppedRedirect = new AtomicLong();
+	private final AtomicLong droppedTitle = new AtomicLong();
+	private final AtomicLong droppedLength = new AtomicLong();
+
+	/**
+	 * @return the filter configured on the command line, or null if no rule
+	 *         is enabled
+	 */
+	public static PageFilter fromOptions(CommandLineOptions options) {
+		PageFilter filter = new PageFilter();
+		boolean articlesOnly = options.has("articlesOnly");
+		if (articlesOnly) {
+			filter.setNamespaces(0);
+			filter.skipRedirects = true;
+			filter.skipTitles = Pattern.compile("\\(disambiguation\\)$");
+		}
+
+		String namespaces = options.getString("namespaces", null);
+		if (namespaces != null) {
+			String[] keys = namespaces.split(",");
+			int[] values = new int[keys.length];
+			for (int i = 0; i < keys.length; i++)
+				values[i] = Integer.parseInt(keys[i].trim());
+			filter.setNamespaces(values);
+		}
+		if (options.has("skipRedirects"))
+			filter.skipRedirects = options.getBoolean("skipRedirects", true);
+		if (options.has("skipTitles"))
+			filter.skipTitles = Pattern.compile(options.getString("skipTitles", null));
+		filter.minTextLength = options.getInt("minTextLength", 0);
+
+		if (!articlesOnly && namespaces == null && !filter.skipRedirects && filter.skipTitles == null
+				&& filter.minTextLength <= 0)
+			return null;
+		return filter;
+	}
+
+	public void setNamespaces(int... namespaces) {
+		this.namespaces = new HashSet<Integer>();
+		for (int namespace : namespaces)
+			this.namespaces.add(namespace);
+	}
+
+	public void setSkipRedirects(boolean skipRedirects) {
+		this.skipRedirects = skipRedirects;
+	}
+
+	/**
+	 * @param regex
+	 *            pages whose title contains a match are dropped
+	 */
+	public void setSkipTitles(String regex) {
+		this.skipTitles = regex != null ? Pattern.compile(regex) : null;
+	}
+
+	public void setMinTextLength(int minTextLength) {
+		this.minTextLength = minTextLength;
+	}
+
+	public boolean accept(WikiArticle page) {
+		if (namespaces != null && !namespaces.contains(namespaceOf(page))) {
+			droppedNamespace.incrementAndGet();
+			return false;
+		}
+
+		String text = page.getText();
+		if (skipRedirects && isRedirect(text)) {
+			droppedRedirect.incrementAndGet();
+			return false;
+		}
+		if (skipTitles != null && page.getTitle() != null && skipTitles.matcher(page.getTitle()).find()) {
+			droppedTitle.incrementAndGet();
+			return false;
+		}
+		if (text == null || text.length() < minTextLength) {
+			droppedLength.incrementAndGet();
+			return false;
+		}
+
+		accepted.incrementAndGet();
+		return true;
+	}
+
+	private static int namespaceOf(WikiArticle page) {
+		Integer namespace = page.getIntegerNamespace();
+		if (namespace != null)
+			return namespace;
+		// no <ns> element and no known prefix in the title
+		return page.isMain() ? 0 : -1;
+	}
+
+	/**
+	 * A redirect page starts with <code>#REDIRECT</code>, in any case, maybe
+	 * after some white space.
+	 */
+	static boolean isRedirect(String text) {
+		if (text == null)
+			return false;
+		int i = 0;
+		while (i < text.length() && Character.isWhitespace(text.charAt(i)))
+			i++;
+		return text.regionMatches(true, i, "#REDIRECT", 0, 9);
+	}
+
+	public String report() {
+		return String.format("Page filter: %d accepted, dropped %d by namespace, %d redirects, %d by title, "
+				+ "%d shorter than %d chars", accepted.get(), droppedNamespace.get(), droppedRedirect.get(),
+				droppedTitle.get(), droppedLength.get(), minTextLength);
+	}
+
+}
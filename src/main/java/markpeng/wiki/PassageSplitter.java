@@ -0,0 +1,149 @@
+package markpeng.wiki;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits an article into overlapping passages of whole paragraphs. A passage
+ * packs consecutive paragraphs up to the window size and the next one starts
+ * the given number of paragraphs before the end of the previous, so a
+ * sentence near a boundary is found in context. Passages do not cross section
+ * headings ("== ... =="), a heading starts the next passage instead, and a
+ * paragraph longer than the window is cut at white space. Stripped text keeps
+ * its headings for this when the {@link WikiTextStripper} is told to.
+ */
+public class PassageSplitter {
+
+	private final int windowChars;
+	private final int overlapParagraphs;
+
+	public PassageSplitter(int windowChars, int overlapParagraphs) {
+		this.windowChars = Math.max(1, windowChars);
+		this.overlapParagraphs = Math.max(0, overlapParagraphs);
+	}
+
+	public static PassageSplitter fromOptions(CommandLineOptions options) {
+		return new PassageSplitter(options.getInt("passageChars", 1500), options.getInt("passageOverlap", 1));
+	}
+
+	/**
+	 * @return the passages in article order, at least one
+	 */
+	public List<String> split(String text) {
+		List<int[]> paragraphs = paragraphs(text);
+		List<String> passages = new ArrayList<String>();
+		if (paragraphs.isEmpty()) {
+			passages.add(text);
+			return passages;
+		}
+
+		int first = 0;
+		while (first < paragraphs.size()) {
+			int last = first;
+			int length = length(paragraphs.get(first));
+			while (last + 1 < paragraphs.size() && !isHeading(paragraphs.get(last + 1))) {
+				int next = length(paragraphs.get(last + 1));
+				if (length + next > windowChars)
+					break;
+				length += next;
+				last++;
+			}
+			passages.add(text.substring(paragraphs.get(first)[0], paragraphs.get(last)[1]));
+
+			if (last + 1 >= paragraphs.size())
+				break;
+			int next = last + 1;
+			if (!isHeading(paragraphs.get(next))) {
+				// overlap as far as the next paragraph still fits in with it
+				length = length(paragraphs.get(next));
+				while (next > last + 1 - overlapParagraphs && next - 1 > first) {
+					length += length(paragraphs.get(next - 1));
+					if (length > windowChars)
+						break;
+					next--;
+				}
+			}
+			first = next;
+		}
+		return passages;
+	}
+
+	/**
+	 * @return {start, end, heading} of every paragraph, with paragraphs
+	 *         longer than the window already cut into pieces
+	 */
+	private List<int[]> paragraphs(String text) {
+		List<int[]> paragraphs = new ArrayList<int[]>();
+		int n = text.length();
+		int i = 0;
+		while (i < n) {
+			while (i < n && Character.isWhitespace(text.charAt(i)))
+				i++;
+			if (i >= n)
+				break;
+
+			int end;
+			boolean heading = text.charAt(i) == '=';
+			if (heading) {
+				end = text.indexOf('\n', i);
+				if (end < 0)
+					end = n;
+			} else {
+				end = paragraphEnd(text, i);
+			}
+
+			int start = i;
+			while (end - start > windowChars) {
+				int cut = cutPoint(text, start, start + windowChars);
+				paragraphs.add(new int[] { start, cut, heading ? 1 : 0 });
+				heading = false;
+				start = cut;
+				while (start < end && Character.isWhitespace(text.charAt(start)))
+					start++;
+			}
+			if (start < end)
+				paragraphs.add(new int[] { start, end, heading ? 1 : 0 });
+			i = end;
+		}
+		return paragraphs;
+	}
+
+	/**
+	 * @return the end of the paragraph starting at i: the next blank line or
+	 *         heading line, or the end of the text
+	 */
+	private static int paragraphEnd(String text, int i) {
+		int n = text.length();
+		int lineEnd = text.indexOf('\n', i);
+		while (lineEnd >= 0) {
+			int next = lineEnd + 1;
+			while (next < n && (text.charAt(next) == ' ' || text.charAt(next) == '\t'))
+				next++;
+			if (next >= n || text.charAt(next) == '\n' || text.charAt(next) == '=')
+				return lineEnd;
+			lineEnd = text.indexOf('\n', next);
+		}
+		return n;
+	}
+
+	/**
+	 * @return the last white space before max in the second half of the
+	 *         window, or max if there is none
+	 */
+	private int cutPoint(String text, int start, int max) {
+		for (int j = max; j > start + windowChars / 2; j--) {
+			if (Character.isWhitespace(text.charAt(j)))
+				return j;
+		}
+		return max;
+	}
+
+	private static int length(int[] paragraph) {
+		return paragraph[1] - paragraph[0];
+	}
+
+	private static boolean isHeading(int[] paragraph) {
+		return paragraph[2] != 0;
+	}
+
+}
@@ -0,0 +1,101 @@
+package markpeng.wiki;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Progress of a question run, kept in a file next to its output: the input
+ * offset and exact id of the last question completed, and the length of the
+ * output up to its answer. The file is replaced as a whole after the output
+ * is forced to disk, so it never refers to rows that were not written.
+ * <p>
+ * File layout: one line of offset, output length and id, tab separated.
+ */
+public class ProgressJournal {
+
+	public static final String SUFFIX = ".progress";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private long offset = -1;
+	private long outputLength = -1;
+	private String id = null;
+
+	public ProgressJournal(File output) {
+		this.file = new File(output.getPath() + SUFFIX);
+	}
+
+	/**
+	 * @return whether the journal of an earlier run was read
+	 */
+	public boolean read() {
+		if (!file.exists())
+			return false;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			try {
+				String[] fields = reader.readLine().split("\t", 3);
+				offset = Long.parseLong(fields[0]);
+				outputLength = Long.parseLong(fields[1]);
+				id = fields[2];
+				return true;
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+			System.out.println("Ignored unreadable progress journal " + file + ": " + e);
+			return false;
+		}
+	}
+
+	public void write(long offset, String id, long outputLength) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			Writer writer = new OutputStreamWriter(out, UTF8);
+			writer.write(offset + "\t" + outputLength + "\t" + id + "\n");
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		this.offset = offset;
+		this.id = id;
+		this.outputLength = outputLength;
+	}
+
+	public void delete() {
+		file.delete();
+	}
+
+	/**
+	 * @return input offset of the line of the last completed question
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return length of the output up to the last completed question
+	 */
+	public long getOutputLength() {
+		return outputLength;
+	}
+
+}
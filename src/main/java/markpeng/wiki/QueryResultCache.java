@@ -0,0 +1,151 @@
+package markpeng.wiki;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.Similarity;
+
+/**
+ * Least recently used cache of top hits, keyed on a query with its boolean
+ * clauses in a canonical order (scores do not depend on the clause order) and
+ * the similarity scoring it. Hits are kept as doc id and score arrays; the
+ * hits cached for n answer any request for fewer, since the top hits of a
+ * smaller n are a prefix of them. Entries are only valid for the searcher
+ * they were computed on, the cache has to be cleared when it changes.
+ */
+public class QueryResultCache {
+
+	private final int maxEntries;
+	private final Map<String, Entry> entries;
+	private long hits = 0;
+	private long misses = 0;
+
+	public QueryResultCache(final int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public static String key(Query query, Similarity similarity) {
+		StringBuilder sb = new StringBuilder(similarity.getClass().getName()).append('|');
+		appendCanonical(query, sb);
+		return sb.toString();
+	}
+
+	private static void appendCanonical(Query query, StringBuilder sb) {
+		if (!(query instanceof BooleanQuery)) {
+			sb.append(query.toString());
+			return;
+		}
+
+		BooleanQuery bq = (BooleanQuery) query;
+		List<String> clauses = new ArrayList<String>();
+		for (BooleanClause clause : bq.clauses()) {
+			StringBuilder clauseKey = new StringBuilder(clause.getOccur().toString());
+			appendCanonical(clause.getQuery(), clauseKey);
+			clauses.add(clauseKey.toString());
+		}
+		Collections.sort(clauses);
+		sb.append('(');
+		for (String clause : clauses)
+			sb.append(clause).append(' ');
+		sb.append(')');
+		if (bq.isCoordDisabled())
+			sb.append("/nocoord");
+		if (bq.getMinimumNumberShouldMatch() > 0)
+			sb.append('~').append(bq.getMinimumNumberShouldMatch());
+		if (bq.getBoost() != 1f)
+			sb.append('^').append(bq.getBoost());
+	}
+
+	/**
+	 * @return the top n hits of the query, or null if not cached for n
+	 */
+	public synchronized ScoreDoc[] get(String key, int n) {
+		Entry entry = entries.get(key);
+		if (entry == null || !entry.answers(n)) {
+			misses++;
+			return null;
+		}
+		hits++;
+		int size = Math.min(n, entry.docs.length);
+		ScoreDoc[] top = new ScoreDoc[size];
+		for (int i = 0; i < size; i++)
+			top[i] = new ScoreDoc(entry.docs[i], entry.scores[i]);
+		return top;
+	}
+
+	/**
+	 * @return whether the top n hits of the query are cached, without
+	 *         counting a hit or miss
+	 */
+	public synchronized boolean contains(String key, int n) {
+		Entry entry = entries.get(key);
+		return entry != null && entry.answers(n);
+	}
+
+	/**
+	 * Caches the top hits of a search for n, unless more are already cached.
+	 */
+	public synchronized void put(String key, int n, ScoreDoc[] top) {
+		if (maxEntries <= 0 || contains(key, n))
+			return;
+		Entry entry = new Entry(top.length, top.length < n);
+		for (int i = 0; i < top.length; i++) {
+			entry.docs[i] = top[i].doc;
+			entry.scores[i] = top[i].score;
+		}
+		entries.put(key, entry);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized String report() {
+		long requests = hits + misses;
+		return String.format("Query cache: %d hits, %d misses (%.1f%% hit rate), %d of %d entries", hits, misses,
+				requests > 0 ? 100.0 * hits / requests : 0.0, entries.size(), maxEntries);
+	}
+
+	private static class Entry {
+
+		final int[] docs;
+		final float[] scores;
+		// fewer hits than asked for, so these are all the hits
+		final boolean complete;
+
+		Entry(int size, boolean complete) {
+			this.docs = new int[size];
+			this.scores = new float[size];
+			this.complete = complete;
+		}
+
+		boolean answers(int n) {
+			return complete || docs.length >= n;
+		}
+
+	}
+
+}
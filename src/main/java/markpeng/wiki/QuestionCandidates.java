@@ -0,0 +1,334 @@
+package markpeng.wiki;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Top hits of the four answer queries of a question, which differ only in the
+ * clauses of the answer. The clauses all queries share are evaluated once:
+ * their matching docs are kept, in doc order, with the sum of their
+ * unnormalized clause scores and the number of clauses matched. Each answer
+ * then only walks the postings of its own clauses, merged with these
+ * candidates, and scores a doc as its boolean query would: the sum of the
+ * clause scores, times the query norm of the answer query and the coord
+ * factor. Only flat queries of either SHOULD or MUST clauses can be split, as
+ * {@link AnswerQueryBuilder} builds them for a field.
+ */
+public class QuestionCandidates {
+
+	private static final int NO_MORE_DOCS = DocIdSetIterator.NO_MORE_DOCS;
+
+	// worst hit first, among equal scores the later doc is worse
+	private static final Comparator<ScoreDoc> WORST_FIRST = new Comparator<ScoreDoc>() {
+		@Override
+		public int compare(ScoreDoc a, ScoreDoc b) {
+			int byScore = Float.compare(a.score, b.score);
+			return byScore != 0 ? byScore : b.doc - a.doc;
+		}
+	};
+
+	private final IndexSearcher searcher;
+	private final List<AtomicReaderContext> leaves;
+	// every clause must match, otherwise any
+	private final boolean conjunction;
+	private final boolean[] coordDisabled;
+	// clauses of each query
+	private final int[] maxCoord;
+	private final float[] queryNorms;
+	private final List<List<Weight>> answerWeights = new ArrayList<List<Weight>>();
+
+	// candidates: global doc ids, ascending, and the sum and number of the
+	// shared clauses matching them
+	private int[] docs = new int[64];
+	private double[] sums = new double[64];
+	private int[] matches = new int[64];
+	private int size = 0;
+	// end of the candidates of each leaf
+	private final int[] leafEnds;
+
+	/**
+	 * @return the candidates of the shared clauses of the queries, or null if
+	 *         the queries share no clause or cannot be split
+	 */
+	public static QuestionCandidates create(IndexSearcher searcher, Query... queries) throws IOException {
+		List<List<Query>> clauses = new ArrayList<List<Query>>();
+		boolean[] coordDisabled = new boolean[queries.length];
+		Boolean conjunction = null;
+		for (int i = 0; i < queries.length; i++) {
+			Query query = searcher.rewrite(queries[i]);
+			List<Query> queryClauses = new ArrayList<Query>();
+			if (query instanceof BooleanQuery) {
+				BooleanQuery bq = (BooleanQuery) query;
+				if (bq.getBoost() != 1f || bq.getMinimumNumberShouldMatch() != 0)
+					return null;
+				for (BooleanClause clause : bq.clauses()) {
+					if (clause.isProhibited())
+						return null;
+					// a single clause is the same either way
+					if (bq.clauses().size() > 1) {
+						if (conjunction == null)
+							conjunction = clause.isRequired();
+						else if (conjunction != clause.isRequired())
+							return null;
+					}
+					queryClauses.add(clause.getQuery());
+				}
+				coordDisabled[i] = bq.isCoordDisabled();
+			} else
+				queryClauses.add(query);
+			clauses.add(queryClauses);
+		}
+
+		// multiset intersection, a clause twice in every query is shared twice
+		List<Query> shared = new ArrayList<Query>(clauses.get(0));
+		for (List<Query> queryClauses : clauses.subList(1, clauses.size())) {
+			List<Query> remaining = new ArrayList<Query>(queryClauses);
+			List<Query> common = new ArrayList<Query>();
+			for (Query clause : shared) {
+				if (remaining.remove(clause))
+					common.add(clause);
+			}
+			shared = common;
+		}
+		if (shared.isEmpty())
+			return null;
+
+		return new QuestionCandidates(searcher, conjunction != null && conjunction, coordDisabled, clauses, shared);
+	}
+
+	private QuestionCandidates(IndexSearcher searcher, boolean conjunction, boolean[] coordDisabled,
+			List<List<Query>> clauses, List<Query> shared) throws IOException {
+		this.searcher = searcher;
+		this.leaves = searcher.getTopReaderContext().leaves();
+		this.conjunction = conjunction;
+		this.coordDisabled = coordDisabled;
+		this.maxCoord = new int[clauses.size()];
+		this.queryNorms = new float[clauses.size()];
+		this.leafEnds = new int[leaves.size()];
+
+		float[] sharedNorm = new float[1];
+		List<Weight> sharedWeights = createWeights(shared, sharedNorm);
+		Similarity similarity = searcher.getSimilarity();
+		for (int i = 0; i < clauses.size(); i++) {
+			List<Query> own = new ArrayList<Query>(clauses.get(i));
+			for (Query clause : shared)
+				own.remove(clause);
+			float[] norm = new float[] { sharedNorm[0] };
+			answerWeights.add(createWeights(own, norm));
+			maxCoord[i] = clauses.get(i).size();
+			// as IndexSearcher normalizes a query
+			float queryNorm = similarity.queryNorm(norm[0]);
+			queryNorms[i] = Float.isInfinite(queryNorm) || Float.isNaN(queryNorm) ? 1f : queryNorm;
+		}
+
+		for (int l = 0; l < leaves.size(); l++) {
+			collect(leaves.get(l), scorers(sharedWeights, leaves.get(l)));
+			leafEnds[l] = size;
+		}
+	}
+
+	/**
+	 * Weights with a query norm of one, so a clause score only has to be
+	 * multiplied by the query norm of the query it is part of. Adds their
+	 * values for normalization to norm[0].
+	 */
+	private List<Weight> createWeights(List<Query> clauses, float[] norm) throws IOException {
+		List<Weight> weights = new ArrayList<Weight>();
+		for (Query clause : clauses) {
+			Weight weight = clause.createWeight(searcher);
+			norm[0] += weight.getValueForNormalization();
+			weight.normalize(1f, 1f);
+			weights.add(weight);
+		}
+		return weights;
+	}
+
+	/**
+	 * Scorers of the weights on the leaf, on their first doc, null where a
+	 * weight has no match.
+	 */
+	private static Scorer[] scorers(List<Weight> weights, AtomicReaderContext leaf) throws IOException {
+		Scorer[] scorers = new Scorer[weights.size()];
+		for (int i = 0; i < scorers.length; i++) {
+			Scorer scorer = weights.get(i).scorer(leaf, leaf.reader().getLiveDocs());
+			if (scorer != null && scorer.nextDoc() != NO_MORE_DOCS)
+				scorers[i] = scorer;
+		}
+		return scorers;
+	}
+
+	private static int minDoc(Scorer[] scorers) {
+		int min = NO_MORE_DOCS;
+		for (Scorer scorer : scorers) {
+			if (scorer != null && scorer.docID() < min)
+				min = scorer.docID();
+		}
+		return min;
+	}
+
+	private void collect(AtomicReaderContext leaf, Scorer[] scorers) throws IOException {
+		if (conjunction) {
+			for (Scorer scorer : scorers) {
+				if (scorer == null)
+					return;
+			}
+			int doc;
+			while ((doc = conjunctionDoc(scorers, scorers[0].docID())) != NO_MORE_DOCS) {
+				double sum = 0;
+				for (Scorer scorer : scorers)
+					sum += scorer.score();
+				add(leaf.docBase + doc, sum, scorers.length);
+				scorers[0].nextDoc();
+			}
+			return;
+		}
+
+		int doc;
+		while ((doc = minDoc(scorers)) != NO_MORE_DOCS) {
+			double sum = 0;
+			int matched = 0;
+			for (Scorer scorer : scorers) {
+				if (scorer != null && scorer.docID() == doc) {
+					sum += scorer.score();
+					matched++;
+					scorer.nextDoc();
+				}
+			}
+			add(leaf.docBase + doc, sum, matched);
+		}
+	}
+
+	/**
+	 * Moves all scorers to the first doc from target on that they all match.
+	 */
+	private static int conjunctionDoc(Scorer[] scorers, int target) throws IOException {
+		int doc = target;
+		while (doc != NO_MORE_DOCS) {
+			boolean all = true;
+			for (Scorer scorer : scorers) {
+				if (scorer.docID() < doc)
+					scorer.advance(doc);
+				if (scorer.docID() > doc) {
+					doc = scorer.docID();
+					all = false;
+					break;
+				}
+			}
+			if (all)
+				return doc;
+		}
+		return NO_MORE_DOCS;
+	}
+
+	private void add(int doc, double sum, int matched) {
+		if (size == docs.length) {
+			docs = ArrayUtil.grow(docs, size + 1);
+			sums = ArrayUtil.grow(sums, docs.length);
+			matches = ArrayUtil.grow(matches, docs.length);
+		}
+		docs[size] = doc;
+		sums[size] = sum;
+		matches[size] = matched;
+		size++;
+	}
+
+	/**
+	 * @return number of docs the shared clauses matched
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Same hits, in the same order, as a TopScoreDocCollector of n for the
+	 * query of the answer.
+	 */
+	public ScoreDoc[] topDocs(int answer, int n) throws IOException {
+		PriorityQueue<ScoreDoc> top = new PriorityQueue<ScoreDoc>(n, WORST_FIRST);
+		List<Weight> weights = answerWeights.get(answer);
+		int c = 0;
+		for (int l = 0; l < leaves.size(); l++) {
+			AtomicReaderContext leaf = leaves.get(l);
+			Scorer[] scorers = scorers(weights, leaf);
+			int end = leafEnds[l];
+
+			if (conjunction) {
+				// only candidates can match every clause
+				boolean none = false;
+				for (Scorer scorer : scorers)
+					none |= scorer == null;
+				for (; c < end && !none; c++) {
+					int doc = docs[c] - leaf.docBase;
+					if (scorers.length > 0 && conjunctionDoc(scorers, doc) != doc)
+						continue;
+					double sum = sums[c];
+					for (Scorer scorer : scorers)
+						sum += scorer.score();
+					offer(top, n, docs[c], score(answer, sum, maxCoord[answer]));
+				}
+				c = end;
+				continue;
+			}
+
+			while (true) {
+				int candidate = c < end ? docs[c] - leaf.docBase : NO_MORE_DOCS;
+				int doc = Math.min(candidate, minDoc(scorers));
+				if (doc == NO_MORE_DOCS)
+					break;
+				double sum = 0;
+				int matched = 0;
+				if (doc == candidate) {
+					sum = sums[c];
+					matched = matches[c];
+					c++;
+				}
+				for (Scorer scorer : scorers) {
+					if (scorer != null && scorer.docID() == doc) {
+						sum += scorer.score();
+						matched++;
+						scorer.nextDoc();
+					}
+				}
+				offer(top, n, leaf.docBase + doc, score(answer, sum, matched));
+			}
+		}
+
+		ScoreDoc[] hits = new ScoreDoc[top.size()];
+		for (int i = hits.length - 1; i >= 0; i--)
+			hits[i] = top.poll();
+		return hits;
+	}
+
+	private float score(int answer, double sum, int matched) {
+		int max = maxCoord[answer];
+		// a boolean query of one clause does not apply coord, see BooleanWeight
+		float coord = coordDisabled[answer] || max == 1 ? 1f : searcher.getSimilarity().coord(matched, max);
+		return (float) (sum * queryNorms[answer] * coord);
+	}
+
+	private static void offer(PriorityQueue<ScoreDoc> top, int n, int doc, float score) {
+		// docs arrive in order, so an equal score does not displace a hit
+		if (top.size() < n)
+			top.add(new ScoreDoc(doc, score));
+		else if (score > top.peek().score) {
+			top.poll();
+			top.add(new ScoreDoc(doc, score));
+		}
+	}
+
+}
@@ -0,0 +1,56 @@
+package markpeng.wiki;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * The tab separated fields of a question line, split in place. Like a
+ * StringTokenizer on tabs, empty fields are skipped. Fields are read as views
+ * of the line.
+ */
+public class QuestionLine {
+
+	private CharSequence line;
+	private int[] starts = new int[8];
+	private int[] ends = new int[8];
+	private int size = 0;
+
+	/**
+	 * Splits the line, which must not change while its fields are used.
+	 */
+	public QuestionLine parse(CharSequence line) {
+		this.line = line;
+		size = 0;
+		int length = line.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && line.charAt(i) == '\t')
+				i++;
+			if (i == length)
+				break;
+			int start = i;
+			while (i < length && line.charAt(i) != '\t')
+				i++;
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+			}
+			starts[size] = start;
+			ends[size] = i;
+			size++;
+		}
+		return this;
+	}
+
+	/**
+	 * @return number of non-empty fields
+	 */
+	public int size() {
+		return size;
+	}
+
+	public CharSequence field(int i) {
+		return CharBuffer.wrap(line, starts[i], ends[i]);
+	}
+
+}
@@ -0,0 +1,165 @@
+package markpeng.wiki;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * Answer file of a question run, written in batches. Rows are buffered and
+ * committed together once the commit interval has passed since the last
+ * commit: the output is flushed and forced to disk, then the progress journal
+ * records the last completed question. A crash loses at most the questions
+ * of one batch, and the next run cuts off whatever part of them was written
+ * and answers them again.
+ * <p>
+ * An output of an earlier run without a journal is resumed after the id of
+ * its last row.
+ */
+public class QuestionOutput implements Closeable {
+
+	public static final String HEADER = "id,correctAnswer";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final FileOutputStream stream;
+	private final BufferedWriter writer;
+	private final ProgressJournal journal;
+	private final long commitNanos;
+	private long lastCommit = System.nanoTime();
+
+	// last completed question, committed unless dirty
+	private long offset = -1;
+	private String id = null;
+	private boolean dirty = false;
+
+	// last question completed by an earlier run
+	private long resumeOffset = -1;
+	private String resumeId = null;
+
+	/**
+	 * @param commitMillis
+	 *            least time between commits, 0 to commit every question
+	 */
+	public QuestionOutput(File file, long commitMillis) throws IOException {
+		this.journal = new ProgressJournal(file);
+		this.commitNanos = commitMillis * 1000000;
+		if (file.exists()) {
+			if (journal.read() && journal.getOutputLength() <= file.length()) {
+				// rows after the last commit are answered again
+				truncate(file, journal.getOutputLength());
+				resumeOffset = journal.getOffset();
+				resumeId = journal.getId();
+			} else
+				resumeId = readLastId(file);
+			stream = new FileOutputStream(file, true);
+			writer = new BufferedWriter(new OutputStreamWriter(stream, UTF8));
+		} else {
+			// of an output since deleted
+			journal.delete();
+			stream = new FileOutputStream(file, false);
+			writer = new BufferedWriter(new OutputStreamWriter(stream, UTF8));
+			// write file header
+			writer.write(HEADER);
+			writer.newLine();
+			writer.flush();
+		}
+	}
+
+	private static void truncate(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.getChannel().truncate(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Id of the last row, read from the end of the file.
+	 *
+	 * @return null if the file has no row
+	 */
+	private static String readLastId(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long end = raf.length();
+			for (int block = 4096;; block *= 2) {
+				int size = (int) Math.min(block, end);
+				byte[] bytes = new byte[size];
+				raf.seek(end - size);
+				raf.readFully(bytes);
+				String tail = new String(bytes, UTF8);
+				int stop = tail.length();
+				while (stop > 0 && (tail.charAt(stop - 1) == '\n' || tail.charAt(stop - 1) == '\r'))
+					stop--;
+				int lineBreak = tail.lastIndexOf('\n', stop - 1);
+				if (lineBreak >= 0 || size == end) {
+					String last = tail.substring(lineBreak + 1, stop);
+					if (last.isEmpty() || last.equals(HEADER))
+						return null;
+					return last.split(",")[0];
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return input offset of the line of the last question completed by an
+	 *         earlier run, -1 if unknown
+	 */
+	public long getResumeOffset() {
+		return resumeOffset;
+	}
+
+	/**
+	 * @return id of the last question completed by an earlier run, null if
+	 *         none
+	 */
+	public String getResumeId() {
+		return resumeId;
+	}
+
+	public void write(String row) throws IOException {
+		writer.write(row);
+		writer.newLine();
+	}
+
+	/**
+	 * Marks the question of the input line as completed, its row written if
+	 * it has one, and commits if the interval has passed.
+	 */
+	public void completed(long offset, String id) throws IOException {
+		this.offset = offset;
+		this.id = id;
+		dirty = true;
+		if (System.nanoTime() - lastCommit >= commitNanos)
+			commit();
+	}
+
+	public void commit() throws IOException {
+		if (!dirty)
+			return;
+		writer.flush();
+		stream.getChannel().force(false);
+		journal.write(offset, id, stream.getChannel().size());
+		dirty = false;
+		lastCommit = System.nanoTime();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			commit();
+		} finally {
+			writer.close();
+		}
+	}
+
+}
@@ -0,0 +1,256 @@
+package markpeng.wiki;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Feeds the lines of a question file to an {@link Answerer} and writes its
+ * answer rows to one or more outputs, each resumed after the last question
+ * it completed in an earlier run. The input is read once, from the first line
+ * any output still needs. With more than one thread the calling thread
+ * reads, a pool of workers answers one question each and a writer thread
+ * emits the rows in input order through a reorder buffer, so the output (and
+ * the resume point of a later run) is the same as that of a sequential run.
+ */
+public class QuestionRunner {
+
+	public interface Answerer {
+
+		/**
+		 * @param pending
+		 *            outputs the question is not yet answered in
+		 * @return the row of each pending output for the question line, null
+		 *         where it has no answer, or null if it has none at all
+		 */
+		String[] answer(String line, boolean[] pending) throws Exception;
+
+	}
+
+	private final int threads;
+
+	public QuestionRunner(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Answers the lines from the current position of the input on.
+	 */
+	public void run(OffsetLineReader input, QuestionOutput[] outputs, Answerer answerer) throws Exception {
+		long first = input.position();
+		long[] starts = new long[outputs.length];
+		long start = Long.MAX_VALUE;
+		for (int k = 0; k < outputs.length; k++) {
+			starts[k] = resumeOffset(input, first, outputs[k]);
+			start = Math.min(start, starts[k]);
+		}
+		input.seek(start);
+
+		if (threads == 1)
+			runSequential(input, outputs, starts, answerer);
+		else
+			runParallel(input, outputs, starts, answerer);
+	}
+
+	/**
+	 * @return offset of the first line the output still needs: the one after
+	 *         the line of its last completed id, which is looked up at the
+	 *         offset the journal recorded and only searched for if the input
+	 *         has changed, or if there is no journal
+	 */
+	private static long resumeOffset(OffsetLineReader input, long first, QuestionOutput output) throws IOException {
+		String id = output.getResumeId();
+		if (id == null)
+			return first;
+		if (output.getResumeOffset() >= first) {
+			input.seek(output.getResumeOffset());
+			CharSequence line = input.nextLine();
+			if (line != null && hasId(line, id))
+				return input.position();
+		}
+
+		input.seek(first);
+		CharSequence line;
+		while ((line = input.nextLine()) != null) {
+			if (hasId(line, id))
+				return input.position();
+		}
+		System.out.println("Last completed Id " + id + " is not in the input");
+		return input.position();
+	}
+
+	/**
+	 * @return whether the first field of the line is the id
+	 */
+	private static boolean hasId(CharSequence line, String id) {
+		if (line.length() < id.length() || (line.length() > id.length() && line.charAt(id.length()) != '\t'))
+			return false;
+		for (int i = 0; i < id.length(); i++) {
+			if (line.charAt(i) != id.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static String idOf(String line) {
+		int tab = line.indexOf('\t');
+		return tab >= 0 ? line.substring(0, tab) : line;
+	}
+
+	private static boolean[] pending(long lineStart, long[] starts) {
+		boolean[] pending = new boolean[starts.length];
+		for (int k = 0; k < starts.length; k++)
+			pending[k] = lineStart >= starts[k];
+		return pending;
+	}
+
+	private static void write(QuestionOutput[] outputs, long lineStart, String line, boolean[] pending,
+			String[] rows) throws IOException {
+		for (int k = 0; k < outputs.length; k++) {
+			if (!pending[k])
+				continue;
+			if (rows != null && rows[k] != null)
+				outputs[k].write(rows[k]);
+			outputs[k].completed(lineStart, idOf(line));
+		}
+	}
+
+	private void runSequential(OffsetLineReader input, QuestionOutput[] outputs, long[] starts, Answerer answerer)
+			throws Exception {
+		String aLine;
+		while ((aLine = input.readLine()) != null) {
+			boolean[] pending = pending(input.lineStart(), starts);
+			write(outputs, input.lineStart(), aLine, pending, answerer.answer(aLine, pending));
+		}
+	}
+
+	private void runParallel(OffsetLineReader input, final QuestionOutput[] outputs, long[] starts,
+			final Answerer answerer) throws Exception {
+		final BlockingQueue<Question> queue = new ArrayBlockingQueue<Question>(threads * 4);
+		// questions read but not yet written, bounds the reorder buffer
+		final Semaphore inFlight = new Semaphore(threads * 16);
+		final ReorderBuffer answered = new ReorderBuffer();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Question question;
+						while ((question = queue.take()).line != null) {
+							try {
+								question.rows = answerer.answer(question.line, question.pending);
+							} catch (Exception e) {
+								failure.compareAndSet(null, e);
+								question.failed = true;
+							}
+							answered.put(question);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "question-" + i);
+			worker.start();
+			workers.add(worker);
+		}
+
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// nothing after a failed question or write is written, so a
+				// rerun resumes at it; the rest is still taken, so the reader
+				// never waits for permits that are not released
+				boolean stopped = false;
+				try {
+					for (long seq = 0;; seq++) {
+						Question question = answered.take(seq);
+						if (question.line == null)
+							break;
+						stopped |= question.failed;
+						if (!stopped) {
+							try {
+								write(outputs, question.offset, question.line, question.pending, question.rows);
+							} catch (Exception e) {
+								failure.compareAndSet(null, e);
+								stopped = true;
+							}
+						}
+						inFlight.release();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "question-writer");
+		writer.start();
+
+		long seq = 0;
+		try {
+			String aLine;
+			while (failure.get() == null && (aLine = input.readLine()) != null) {
+				inFlight.acquire();
+				queue.put(new Question(seq++, aLine, input.lineStart(), pending(input.lineStart(), starts)));
+			}
+		} finally {
+			for (int i = 0; i < threads; i++)
+				queue.put(new Question(-1, null, -1, null));
+			for (Thread worker : workers)
+				worker.join();
+			answered.put(new Question(seq, null, -1, null));
+			writer.join();
+		}
+
+		if (failure.get() != null)
+			throw failure.get();
+	}
+
+	private static class Question {
+
+		final long seq;
+		// null marks the end of input
+		final String line;
+		final long offset;
+		// outputs to answer in
+		final boolean[] pending;
+		String[] rows;
+		boolean failed;
+
+		Question(long seq, String line, long offset, boolean[] pending) {
+			this.seq = seq;
+			this.line = line;
+			this.offset = offset;
+			this.pending = pending;
+		}
+
+	}
+
+	/**
+	 * Answered questions by input position, handed out in input order.
+	 */
+	private static class ReorderBuffer {
+
+		private final Map<Long, Question> questions = new HashMap<Long, Question>();
+
+		synchronized void put(Question question) {
+			questions.put(question.seq, question);
+			notifyAll();
+		}
+
+		synchronized Question take(long seq) throws InterruptedException {
+			while (!questions.containsKey(seq))
+				wait();
+			return questions.remove(seq);
+		}
+
+	}
+
+}
@@ -0,0 +1,481 @@
+package markpeng.wiki;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Answers questions over HTTP with the index kept open between them.
+ * <p>
+ * <code>POST /answer</code> takes a question as a JSON object of
+ * <code>question</code>, four <code>answers</code> and optionally an
+ * <code>id</code>, a <code>strategy</code> name and a <code>topN</code> up to
+ * a limit, or an array of them, and returns the chosen answer and the score of every answer
+ * of each. <code>GET /status</code> returns request counts, throughput,
+ * latency percentiles of recent questions and the index version.
+ * <p>
+ * Requests are answered by a fixed pool of threads with a bounded queue, a
+ * request that does not fit is refused with 503. The index is reopened with
+ * DirectoryReader.openIfChanged, through a SearcherManager, at a fixed
+ * interval; the searcher is switched while no question is being answered.
+ */
+public class QuestionServer {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_BODY = 16 * 1024 * 1024;
+	// latencies kept for the percentiles
+	private static final int RECENT_QUESTIONS = 1024;
+
+	private final QuestionToWiki worker;
+	// null for an index that cannot be reopened
+	private final SearcherManager searcherManager;
+	// questions hold the read lock, switching the searcher the write lock
+	private final ReentrantReadWriteLock searcherLock = new ReentrantReadWriteLock(true);
+	private final AnswerStrategy defaultStrategy;
+	private final int defaultTopN;
+	private final int maxBatch;
+	// largest topN a request may ask for
+	private final int maxTopN;
+
+	private HttpServer server;
+	private ExecutorService httpExecutor;
+	private ThreadPoolExecutor answerExecutor;
+	private ScheduledExecutorService refresher;
+
+	private final long startMillis = System.currentTimeMillis();
+	private long requests = 0;
+	private long questions = 0;
+	private long errors = 0;
+	private long rejected = 0;
+	private long refreshes = 0;
+	private long lastRefreshMillis = 0;
+	// end time and latency of the recent questions, a ring
+	private final long[] recentEnds = new long[RECENT_QUESTIONS];
+	private final long[] recentNanos = new long[RECENT_QUESTIONS];
+
+	/**
+	 * @param searcherManager
+	 *            searchers of the index, or null to answer from the reader
+	 *            the worker opened
+	 */
+	public QuestionServer(QuestionToWiki worker, SearcherManager searcherManager, AnswerStrategy defaultStrategy,
+			int defaultTopN, int maxBatch, int maxTopN) {
+		this.worker = worker;
+		this.searcherManager = searcherManager;
+		this.defaultStrategy = defaultStrategy;
+		this.defaultTopN = defaultTopN;
+		this.maxBatch = maxBatch;
+		this.maxTopN = maxTopN;
+		worker.setLogHits(false);
+	}
+
+	/**
+	 * @param threads
+	 *            requests answered at once
+	 * @param queueSize
+	 *            requests waiting for a thread before more are refused
+	 * @param refreshSeconds
+	 *            time between checks for a new index commit, 0 for none
+	 */
+	public void start(InetSocketAddress address, int threads, int queueSize, int refreshSeconds) throws IOException {
+		worker.setThreads(threads);
+		worker.openSearcher();
+
+		answerExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)));
+		// only reads requests and hands them over
+		httpExecutor = Executors.newFixedThreadPool(2);
+		server = HttpServer.create(address, 0);
+		server.setExecutor(httpExecutor);
+		server.createContext("/answer", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleAnswer(exchange);
+			}
+		});
+		server.createContext("/status", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleStatus(exchange);
+			}
+		});
+		server.start();
+
+		if (searcherManager != null && refreshSeconds > 0) {
+			refresher = Executors.newSingleThreadScheduledExecutor();
+			refresher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+		}
+		System.out.println("Answering questions on http://" + server.getAddress().getHostString() + ":"
+				+ server.getAddress().getPort() + "/answer with " + threads + " threads");
+	}
+
+	/**
+	 * Switches to a new commit of the index, if there is one.
+	 */
+	private void refresh() throws IOException {
+		searcherManager.maybeRefresh();
+		IndexSearcher latest = searcherManager.acquire();
+		try {
+			searcherLock.readLock().lock();
+			try {
+				if (latest.getIndexReader() == worker.getIndexReader())
+					return;
+			} finally {
+				searcherLock.readLock().unlock();
+			}
+		} finally {
+			searcherManager.release(latest);
+		}
+
+		searcherLock.writeLock().lock();
+		try {
+			if (worker.refreshSearcher()) {
+				synchronized (this) {
+					refreshes++;
+					lastRefreshMillis = System.currentTimeMillis();
+				}
+			}
+		} finally {
+			searcherLock.writeLock().unlock();
+		}
+	}
+
+	public void stop() throws IOException, InterruptedException {
+		server.stop(1);
+		httpExecutor.shutdown();
+		answerExecutor.shutdown();
+		answerExecutor.awaitTermination(1, TimeUnit.MINUTES);
+		if (refresher != null) {
+			refresher.shutdown();
+			refresher.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		worker.closeSearcher();
+		if (searcherManager != null)
+			searcherManager.close();
+	}
+
+	private void handleAnswer(final HttpExchange exchange) throws IOException {
+		synchronized (this) {
+			requests++;
+		}
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			respond(exchange, 405, error("Use POST"));
+			return;
+		}
+
+		final Object request;
+		try {
+			request = Json.parse(readBody(exchange.getRequestBody()));
+		} catch (IllegalArgumentException e) {
+			synchronized (this) {
+				errors++;
+			}
+			respond(exchange, 400, error(e.getMessage()));
+			return;
+		}
+
+		try {
+			answerExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						answer(exchange, request);
+					} catch (IOException e) {
+						e.printStackTrace();
+					} finally {
+						exchange.close();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				rejected++;
+			}
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			respond(exchange, 503, error("Too many requests"));
+		}
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				body.write(buffer, 0, read);
+				if (body.size() > MAX_BODY)
+					throw new IllegalArgumentException("Request larger than " + MAX_BODY + " bytes");
+			}
+			return new String(body.toByteArray(), UTF8);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void answer(HttpExchange exchange, Object request) throws IOException {
+		boolean batch = request instanceof List;
+		List<?> asked = batch ? (List<?>) request : Arrays.asList(request);
+		if (asked.size() > maxBatch) {
+			respond(exchange, 413, error("More than " + maxBatch + " questions"));
+			return;
+		}
+
+		List<Object> results = new ArrayList<Object>();
+		try {
+			for (Object question : asked)
+				results.add(answer(question));
+		} catch (IllegalArgumentException e) {
+			synchronized (this) {
+				errors++;
+			}
+			respond(exchange, 400, error(e.getMessage()));
+			return;
+		} catch (Exception e) {
+			e.printStackTrace();
+			synchronized (this) {
+				errors++;
+			}
+			respond(exchange, 500, error(e.toString()));
+			return;
+		}
+		respond(exchange, 200, Json.write(batch ? results : results.get(0)));
+	}
+
+	/**
+	 * @return the chosen answer and the score of every answer
+	 */
+	private Map<String, Object> answer(Object request) throws Exception {
+		if (!(request instanceof Map))
+			throw new IllegalArgumentException("A question must be a JSON object");
+		Map<?, ?> fields = (Map<?, ?>) request;
+		if (!(fields.get("question") instanceof String))
+			throw new IllegalArgumentException("Missing question");
+		String question = (String) fields.get("question");
+		if (!(fields.get("answers") instanceof List) || ((List<?>) fields.get("answers")).size() != 4)
+			throw new IllegalArgumentException("A question needs 4 answers");
+		String[] answers = new String[4];
+		for (int i = 0; i < 4; i++)
+			answers[i] = String.valueOf(((List<?>) fields.get("answers")).get(i));
+		AnswerStrategy strategy = fields.get("strategy") != null ? StandardStrategy.forName(String
+				.valueOf(fields.get("strategy"))) : defaultStrategy;
+		int topN = fields.get("topN") instanceof Number ? ((Number) fields.get("topN")).intValue() : defaultTopN;
+		if (topN < 1)
+			throw new IllegalArgumentException("topN must be positive");
+		if (topN > maxTopN)
+			throw new IllegalArgumentException("topN must be at most " + maxTopN);
+
+		long start = System.nanoTime();
+		double[] scores;
+		searcherLock.readLock().lock();
+		try {
+			scores = worker.scoreQuestion(question, answers, strategy, topN);
+		} finally {
+			searcherLock.readLock().unlock();
+		}
+		long nanos = System.nanoTime() - start;
+		questionAnswered(nanos);
+
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		if (fields.containsKey("id"))
+			result.put("id", fields.get("id"));
+		int best = QuestionToWiki.bestAnswer(scores);
+		result.put("answer", best > 0 ? String.valueOf((char) ('A' + best - 1)) : null);
+		Map<String, Object> answerScores = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < scores.length; i++)
+			answerScores.put(String.valueOf((char) ('A' + i)), scores[i]);
+		result.put("scores", answerScores);
+		result.put("strategy", strategy.getName());
+		result.put("millis", nanos / 1e6);
+		return result;
+	}
+
+	private synchronized void questionAnswered(long nanos) {
+		int slot = (int) (questions % RECENT_QUESTIONS);
+		recentEnds[slot] = System.currentTimeMillis();
+		recentNanos[slot] = nanos;
+		questions++;
+	}
+
+	private void handleStatus(HttpExchange exchange) throws IOException {
+		try {
+			respond(exchange, 200, Json.write(status()));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private Map<String, Object> status() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			double uptime = (now - startMillis) / 1000.0;
+			status.put("uptimeSeconds", uptime);
+			status.put("requests", requests);
+			status.put("questions", questions);
+			status.put("errors", errors);
+			status.put("rejected", rejected);
+			status.put("questionsPerSecond", uptime > 0 ? questions / uptime : 0.0);
+
+			int recent = (int) Math.min(questions, RECENT_QUESTIONS);
+			long[] latencies = new long[recent];
+			long oldestEnd = now;
+			for (int i = 0; i < recent; i++) {
+				latencies[i] = recentNanos[i];
+				oldestEnd = Math.min(oldestEnd, recentEnds[i]);
+			}
+			// over the recent questions, up to now
+			status.put("recentQuestionsPerSecond", recent > 0 && now > oldestEnd ? recent * 1000.0
+					/ (now - oldestEnd) : 0.0);
+			Arrays.sort(latencies);
+			Map<String, Object> latency = new LinkedHashMap<String, Object>();
+			latency.put("questions", recent);
+			latency.put("p50", percentile(latencies, 0.50) / 1e6);
+			latency.put("p99", percentile(latencies, 0.99) / 1e6);
+			latency.put("max", recent > 0 ? latencies[recent - 1] / 1e6 : 0.0);
+			status.put("latencyMillis", latency);
+			status.put("refreshes", refreshes);
+			status.put("lastRefreshMillisAgo", lastRefreshMillis > 0 ? now - lastRefreshMillis : null);
+		}
+		status.put("activeRequests", answerExecutor.getActiveCount());
+		status.put("queuedRequests", answerExecutor.getQueue().size());
+
+		searcherLock.readLock().lock();
+		try {
+			IndexReader reader = worker.getIndexReader();
+			Map<String, Object> index = new LinkedHashMap<String, Object>();
+			if (reader instanceof DirectoryReader)
+				index.put("version", ((DirectoryReader) reader).getVersion());
+			index.put("numDocs", reader.numDocs());
+			index.put("maxDoc", reader.maxDoc());
+			status.put("index", index);
+		} finally {
+			searcherLock.readLock().unlock();
+		}
+		return status;
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	private static String error(String message) {
+		Map<String, Object> error = new LinkedHashMap<String, Object>();
+		error.put("error", message);
+		return Json.write(error);
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = json.getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		args = options.getPositional().toArray(new String[0]);
+		if (args.length != 1) {
+			System.err.println("Usage: java -cp lucene-wikipedia-0.0.1-jar-with-dependencies.jar "
+					+ "markpeng.wiki.QuestionServer <path of lucene index folder> "
+					+ "[--port=<8080>] [--host=<address>] [--threads=<N>] [--queue=<requests>] "
+					+ "[--maxBatch=<questions>] [--topN=<10>] [--maxTopN=<1000>] [--strategy=<name>] "
+					+ "[--refreshInterval=<seconds>] [--passageScore=<none|max|sum>] [--warmup] "
+					+ "[--shareQuestion] [--queryCache=<entries>]");
+			System.exit(-1);
+		}
+
+		File indexFolder = new File(args[0]);
+		QuestionToWiki worker;
+		SearcherManager searcherManager = null;
+		Directory directory = FSDirectory.open(indexFolder);
+		if (DirectoryReader.indexExists(directory)) {
+			searcherManager = new SearcherManager(directory, null);
+			worker = new QuestionToWiki(searcherManager, indexFolder, null, null);
+		} else {
+			// shards are read through a MultiReader, which is not reopened
+			directory.close();
+			worker = new QuestionToWiki(args[0], null, null);
+		}
+
+		boolean warmup = options.has("warmup");
+		if (warmup) {
+			worker.setPreload(true, null);
+			worker.setWarmTerms(true);
+		}
+		String preload = options.getString("preload", null);
+		if (preload != null)
+			worker.setPreload(true, "all".equals(preload) ? null : new HashSet<String>(Arrays.asList(preload
+					.split(","))));
+		worker.setShareQuestion(options.has("shareQuestion"));
+		worker.setQueryCache(options.getInt("queryCache", 0));
+		worker.setPassageScore(QuestionToWiki.PassageScore.valueOf(options.getString("passageScore", "max")
+				.toUpperCase()));
+
+		int threads = options.getInt("threads", Runtime.getRuntime().availableProcessors());
+		final QuestionServer questionServer = new QuestionServer(worker, searcherManager,
+				StandardStrategy.forName(options.getString("strategy", "orCount")), options.getInt("topN", 10),
+				options.getInt("maxBatch", 1000), options.getInt("maxTopN", 1000));
+		String host = options.getString("host", null);
+		int port = options.getInt("port", 8080);
+		questionServer.start(host != null ? new InetSocketAddress(host, port) : new InetSocketAddress(port),
+				threads, options.getInt("queue", threads * 16), options.getInt("refreshInterval", 10));
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					questionServer.stop();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+}
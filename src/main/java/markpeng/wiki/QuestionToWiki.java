@@ -1,45 +1,39 @@
 package markpeng.wiki;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.core.LowerCaseFilter;
-import org.apache.lucene.analysis.core.StopFilter;
-import org.apache.lucene.analysis.en.PorterStemFilter;
-import org.apache.lucene.analysis.miscellaneous.WordDelimiterFilter;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.analysis.standard.StandardTokenizer;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.util.CharArraySet;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.queryparser.classic.QueryParser;
-import org.apache.lucene.queryparser.classic.QueryParser.Operator;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TopScoreDocCollector;
-import org.apache.lucene.search.similarities.DefaultSimilarity;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
 public class QuestionToWiki {
@@ -48,8 +42,81 @@ public class QuestionToWiki {
 	private String outputPath;
 
 	private Analyzer analyzer;
+	private AnswerQueryBuilder queryBuilder;
 	private IndexSearcher searcher;
 	private IndexReader luceneReader;
+	// near-real-time searchers of an index being built, null otherwise
+	private SearcherManager searcherManager;
+	private File indexFolder;
+
+	// how passage hits are turned into article hits
+	public enum PassageScore {
+		// every passage is a hit of its own
+		NONE,
+		// an article scores with its best passage
+		MAX,
+		// an article scores with the sum of its passages in the top hits
+		SUM
+	}
+
+	// passages fetched per article hit before grouping
+	private static final int PASSAGES_PER_ARTICLE = 5;
+
+	// articles are indexed as passages, with their id as doc values
+	private boolean passageIndex = false;
+	// titles are doc values too
+	private boolean titleDocValues = false;
+	private PassageScore passageScore = PassageScore.MAX;
+
+	// warm-up before the first question
+	private static final int WARM_UP_TOP_N = 10;
+	private static final int MAX_HOT_TERMS = 10000;
+	private final IndexWarmer warmer = new IndexWarmer();
+	private boolean preload = false;
+	// null preloads every file
+	private Set<String> preloadExtensions = null;
+	private boolean warmTerms = false;
+	private File hotTermsFile = null;
+	private String warmQuestionsPath = null;
+	private int warmQuestions = 0;
+	private boolean warmedUp = false;
+	private boolean warmingUp = false;
+
+	// latency of the first questions, from construction to first answer
+	private final long createdNanos = System.nanoTime();
+	private long warmUpNanos = 0;
+	private long firstAnswerNanos = 0;
+	private int latencyQuestions = 100;
+	private List<Long> latencies = new ArrayList<Long>();
+
+	// evaluate the question clauses of the four answer queries once
+	private boolean shareQuestion = false;
+
+	// top hits of recent queries, null for none
+	private QueryResultCache queryCache = null;
+
+	// top hits and term counts of earlier runs on the same index, null for
+	// none
+	private File scoreCacheFile = null;
+	private ScoreCacheFile scoreCache = null;
+
+	// questions answered at once, the searcher is not refreshed if above one
+	private int threads = 1;
+
+	// least time between commits of the answers written
+	private long commitMillis = 1000;
+
+	// print the hits of every answer
+	private boolean logHits = true;
+
+	// fields of the question line answered on each thread
+	private final ThreadLocal<QuestionLine> questionLines =
+			new ThreadLocal<QuestionLine>() {
+				@Override
+				protected QuestionLine initialValue() {
+					return new QuestionLine();
+				}
+			};
 
 	public QuestionToWiki(String luceneFolderPath, String inputPath,
 			String outputPath) {
@@ -57,920 +124,849 @@ public class QuestionToWiki {
 		this.outputPath = outputPath;
 
 		try {
-			analyzer = new Analyzer() {
-				@Override
-				protected TokenStreamComponents createComponents(
-						String fieldName, Reader reader) {
-					StandardTokenizer tokenzier = new StandardTokenizer(reader);
-					TokenStream ts = new StopFilter(tokenzier,
-							StandardAnalyzer.STOP_WORDS_SET);
-					int flags = WordDelimiterFilter.SPLIT_ON_NUMERICS
-							| WordDelimiterFilter.SPLIT_ON_CASE_CHANGE
-							| WordDelimiterFilter.GENERATE_NUMBER_PARTS
-							| WordDelimiterFilter.GENERATE_WORD_PARTS;
-					ts = new WordDelimiterFilter(ts, flags, null);
-					ts = new LowerCaseFilter(ts);
-					ts = new PorterStemFilter(ts);
-
-					return new TokenStreamComponents(tokenzier, ts);
-				}
-			};
+			analyzer = new WikiAnalyzer();
+			queryBuilder = new AnswerQueryBuilder(analyzer);
 
-			luceneReader = DirectoryReader.open(FSDirectory.open(new File(
-					luceneFolderPath)));
+			indexFolder = new File(luceneFolderPath);
+			// a sharded build left unmerged is read through a MultiReader
+			luceneReader = ShardedIndexBuilder.openReader(new File(
+					luceneFolderPath));
 
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
-	public void questionAnsweringByTopN(int topN) throws Exception {
-		BufferedReader inputReader = null;
-		BufferedWriter outputWriter = null;
+	/**
+	 * Answers from the near-real-time searchers of an index that is still
+	 * being built, switching to the latest one before every question when
+	 * answering on one thread.
+	 */
+	public QuestionToWiki(SearcherManager searcherManager, File indexFolder,
+			String inputPath, String outputPath) {
+		this.inputPath = inputPath;
+		this.outputPath = outputPath;
+		this.searcherManager = searcherManager;
+		this.indexFolder = indexFolder;
+		analyzer = new WikiAnalyzer();
+		queryBuilder = new AnswerQueryBuilder(analyzer);
+	}
 
-		try {
+	/**
+	 * Opens the searcher, and warms it up, for {@link #scoreQuestion}.
+	 * answerQuestions opens and closes it itself.
+	 */
+	public void openSearcher() throws IOException {
+		if (searcherManager != null)
+			searcher = searcherManager.acquire();
+		else
 			searcher = new IndexSearcher(luceneReader);
+		searcherChanged();
+		// the index of a near-real-time searcher changes all the time
+		if (scoreCacheFile != null && searcherManager == null)
+			scoreCache = new ScoreCacheFile(scoreCacheFile,
+					ScoreCacheFile.stamp(searcher.getIndexReader()));
+		if (!warmedUp)
+			warmUp();
+	}
 
-			inputReader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(inputPath)));
-
-			File outputFileTest = new File(outputPath);
-			String prevId = null;
-			if (outputFileTest.exists()) {
-				prevId = readPreviousCompletedId();
-				System.out.println("Last completed Id: " + prevId + "\n\n");
-
-				outputWriter = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(outputPath, true)));
-			} else {
-				outputWriter = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(outputPath, false)));
-				// write file header
-				outputWriter.write("id,correctAnswer");
-				outputWriter.newLine();
-				outputWriter.flush();
-			}
-
-			String aLine;
-			// skip first line
-			inputReader.readLine();
-
-			boolean startQuery = false;
-			if (prevId == null)
-				startQuery = true;
-			while ((aLine = inputReader.readLine()) != null) {
-				if (startQuery) {
-					StringTokenizer tk = new StringTokenizer(aLine, "\t");
-					if (tk.countTokens() == 6) {
-						String id = tk.nextToken();
-						String question = escapeSymbols(tk.nextToken());
-
-						System.out.println("\n\nQuery id=" + id + " ===> "
-								+ question);
-
-						double maxScore = 0.0;
-						int finalAns = -1;
-						// get score from 4 queries
-						for (int i = 0; i < 4; i++) {
-							int answerId = (i + 1);
-
-							String qstring = question;
-							String ans = escapeSymbols(tk.nextToken());
-							qstring = createQueryString(qstring, ans);
-
-							QueryParser parser = new QueryParser("text",
-									analyzer);
-							Query query = parser.parse("title:(" + qstring
-									+ ") OR text:(" + qstring + ")");
-							System.out.println("Ans " + answerId + ":  " + ans);
-
-							// get top hits
-							TopScoreDocCollector collector = TopScoreDocCollector
-									.create(topN, true);
-							searcher.search(query, collector);
-							ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-							System.out.println("Found : " + hits.length
-									+ " hits.");
-							double sumScore = 0.0;
-							for (int j = 0; j < hits.length; j++) {
-								int docId = hits[j].doc;
-								Document d = searcher.doc(docId);
-								String title = d.get("title");
-								String text = d.get("text");
-								double score = hits[j].score;
-								System.out.println((j + 1) + ": title=" + title
-										+ ", score=" + score);
-
-								sumScore += score;
-							}
-
-							if (sumScore > maxScore) {
-								maxScore = sumScore;
-								finalAns = answerId;
-							}
-						} // end of for
-
-						if (finalAns > 0) {
-							String ansStr = "";
-							if (finalAns == 1)
-								ansStr = "A";
-							else if (finalAns == 2)
-								ansStr = "B";
-							else if (finalAns == 3)
-								ansStr = "C";
-							else if (finalAns == 4)
-								ansStr = "D";
-
-							outputWriter.write(id);
-							outputWriter.write(",");
-							outputWriter.write(ansStr);
-							outputWriter.newLine();
-
-							outputWriter.flush();
-						}
-					}
-				}
+	/**
+	 * @param extensions
+	 *            index file extensions to preload, null for all files
+	 */
+	public void setPreload(boolean preload, Set<String> extensions) {
+		this.preload = preload;
+		this.preloadExtensions = extensions;
+	}
 
-				if (prevId != null && aLine.startsWith(prevId))
-					startQuery = true;
+	/**
+	 * Walks the term dictionary of title and text before the first question.
+	 */
+	public void setWarmTerms(boolean warmTerms) {
+		this.warmTerms = warmTerms;
+	}
 
-			} // end of while
+	/**
+	 * Reads the postings of the terms listed in the file before the first
+	 * question, and adds the terms searched in this run to it at the end.
+	 */
+	public void setHotTermsFile(File hotTermsFile) {
+		this.hotTermsFile = hotTermsFile;
+	}
 
-		} finally {
-			if (luceneReader != null)
-				luceneReader.close();
+	/**
+	 * Runs the queries of the first questions of a question file, without
+	 * answering them, before the first question.
+	 */
+	public void setWarmQuestions(String path, int count) {
+		this.warmQuestionsPath = path;
+		this.warmQuestions = count;
+	}
 
-			if (inputReader != null)
-				inputReader.close();
+	/**
+	 * Number of first questions whose latency is reported.
+	 */
+	public void setLatencyQuestions(int latencyQuestions) {
+		this.latencyQuestions = latencyQuestions;
+	}
 
-			if (outputWriter != null) {
-				outputWriter.flush();
-				outputWriter.close();
-			}
+	private void warmUp() throws IOException {
+		warmedUp = true;
+		if (!preload && !warmTerms && hotTermsFile == null
+				&& warmQuestions == 0)
+			return;
 
+		long start = System.nanoTime();
+		warmingUp = true;
+		try {
+			StringBuilder report = new StringBuilder("Warm-up:");
+			if (preload)
+				report.append(String.format(" preloaded %.1f MB,",
+						warmer.preload(indexFolder, preloadExtensions) / 1e6));
+			if (warmTerms)
+				report.append(" walked "
+						+ warmer.touchTerms(searcher.getIndexReader(),
+								"title", "text") + " terms,");
+			if (hotTermsFile != null)
+				report.append(" read "
+						+ warmer.touchHotTerms(searcher.getIndexReader(),
+								hotTermsFile) + " hot term postings,");
+			if (warmQuestions > 0)
+				report.append(" replayed "
+						+ replayQuestions(warmQuestionsPath, warmQuestions)
+						+ " questions,");
+			warmUpNanos = System.nanoTime() - start;
+			report.append(" in " + warmUpNanos / 1000000 + " ms");
+			System.out.println(report);
+		} finally {
+			warmingUp = false;
 		}
 	}
 
-	public void questionAnsweringWithoutLengthNorm(int topN) throws Exception {
-		BufferedReader inputReader = null;
-		BufferedWriter outputWriter = null;
-
+	private int replayQuestions(String path, int count) throws IOException {
+		OffsetLineReader reader = new OffsetLineReader(new File(path));
+		QuestionLine line = new QuestionLine();
+		int replayed = 0;
 		try {
-			searcher = new IndexSearcher(luceneReader);
-			searcher.setSimilarity(new DefaultSimilarity() {
-				public float lengthNorm(FieldInvertState state) {
-					return (float) (1.0 / state.getLength());
+			// skip first line
+			reader.nextLine();
+			CharSequence aLine;
+			while (replayed < count && (aLine = reader.nextLine()) != null) {
+				if (line.parse(aLine).size() != 6)
+					continue;
+				AnswerQueryBuilder.Analyzed question = queryBuilder
+						.analyzeQuestion(line.field(1));
+				for (int i = 0; i < 4; i++) {
+					Query query = queryBuilder.build(question,
+							queryBuilder.analyzeAnswer(line.field(i + 2)),
+							Occur.SHOULD, "text");
+					getTitles(search(query, WARM_UP_TOP_N));
 				}
+				replayed++;
+			}
+		} finally {
+			reader.close();
+		}
+		return replayed;
+	}
 
-				// public float tf(float freq) {
-				// return (float) freq;
-				// }
-			});
+	/**
+	 * Number of questions answered in parallel, their answers are still
+	 * written in input order.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
 
-			inputReader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(inputPath)));
-
-			File outputFileTest = new File(outputPath);
-			String prevId = null;
-			if (outputFileTest.exists()) {
-				prevId = readPreviousCompletedId();
-				System.out.println("Last completed Id: " + prevId + "\n\n");
-
-				outputWriter = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(outputPath, true)));
-			} else {
-				outputWriter = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(outputPath, false)));
-				// write file header
-				outputWriter.write("id,correctAnswer");
-				outputWriter.newLine();
-				outputWriter.flush();
-			}
+	/**
+	 * Least time between commits of the output, which are forced to disk
+	 * with the progress of the run: a crash loses the answers of at most this
+	 * long. 0 commits after every question.
+	 */
+	public void setCommitInterval(long commitMillis) {
+		this.commitMillis = commitMillis;
+	}
 
-			String aLine;
-			// skip first line
-			inputReader.readLine();
+	/**
+	 * Whether to print the top hits of every answer.
+	 */
+	public void setLogHits(boolean logHits) {
+		this.logHits = logHits;
+	}
 
-			boolean startQuery = false;
-			if (prevId == null)
-				startQuery = true;
-			while ((aLine = inputReader.readLine()) != null) {
-				if (startQuery) {
-					StringTokenizer tk = new StringTokenizer(aLine, "\t");
-					if (tk.countTokens() == 6) {
-						String id = tk.nextToken();
-						String question = escapeSymbols(tk.nextToken());
-
-						System.out.println("\n\nQuery id=" + id + " ===> "
-								+ question);
-
-						double maxScore = 0.0;
-						int finalAns = -1;
-						// get score from 4 queries
-						for (int i = 0; i < 4; i++) {
-							int answerId = (i + 1);
-
-							String qstring = question;
-							String ans = escapeSymbols(tk.nextToken());
-							qstring = createQueryString(qstring, ans);
-
-							QueryParser parser = new QueryParser("text",
-									analyzer);
-							Query query = parser.parse("title:(" + qstring
-									+ ") OR text:(" + qstring + ")");
-							System.out.println("Ans " + answerId + ":  " + ans);
-
-							// get top hits
-							TopScoreDocCollector collector = TopScoreDocCollector
-									.create(topN, true);
-							searcher.search(query, collector);
-							ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-							System.out.println("Found : " + hits.length
-									+ " hits.");
-							double sumScore = 0.0;
-							for (int j = 0; j < hits.length; j++) {
-								int docId = hits[j].doc;
-								Document d = searcher.doc(docId);
-								String title = d.get("title");
-								String text = d.get("text");
-								double score = hits[j].score;
-								System.out.println((j + 1) + ": title=" + title
-										+ ", score=" + score);
-
-								sumScore += score;
-							}
-
-							if (sumScore > maxScore) {
-								maxScore = sumScore;
-								finalAns = answerId;
-							}
-						} // end of for
-
-						if (finalAns > 0) {
-							String ansStr = "";
-							if (finalAns == 1)
-								ansStr = "A";
-							else if (finalAns == 2)
-								ansStr = "B";
-							else if (finalAns == 3)
-								ansStr = "C";
-							else if (finalAns == 4)
-								ansStr = "D";
-
-							outputWriter.write(id);
-							outputWriter.write(",");
-							outputWriter.write(ansStr);
-							outputWriter.newLine();
-
-							outputWriter.flush();
-						}
-					}
-				}
+	private long startQuestion() throws IOException {
+		long start = System.nanoTime();
+		if (threads == 1)
+			refreshSearcher();
+		return start;
+	}
 
-				if (prevId != null && aLine.startsWith(prevId))
-					startQuery = true;
+	private synchronized void finishQuestion(long start) {
+		long now = System.nanoTime();
+		if (firstAnswerNanos == 0)
+			firstAnswerNanos = now - createdNanos;
+		if (latencies.size() < latencyQuestions)
+			latencies.add(now - start);
+	}
 
-			} // end of while
+	private void printLatencies() {
+		if (latencies.isEmpty())
+			return;
+
+		List<Long> sorted = new ArrayList<Long>(latencies);
+		Collections.sort(sorted);
+		System.out.println(String.format(
+				"Time to first answer: %d ms (warm-up %d ms), first %d "
+						+ "questions: p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+				firstAnswerNanos / 1000000, warmUpNanos / 1000000,
+				sorted.size(), percentile(sorted, 0.50) / 1e6,
+				percentile(sorted, 0.99) / 1e6,
+				sorted.get(sorted.size() - 1) / 1e6));
+	}
 
-		} finally {
-			if (luceneReader != null)
-				luceneReader.close();
+	private static long percentile(List<Long> sorted, double p) {
+		int index = (int) Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
 
-			if (inputReader != null)
-				inputReader.close();
+	/**
+	 * Switches to the latest searcher of the searcher manager, if any. Not
+	 * to be called while questions are answered on other threads.
+	 *
+	 * @return whether the searcher changed
+	 */
+	public boolean refreshSearcher() throws IOException {
+		if (searcherManager == null)
+			return false;
+
+		IndexSearcher latest = searcherManager.acquire();
+		if (latest == searcher) {
+			searcherManager.release(latest);
+			return false;
+		}
+		searcherManager.release(searcher);
+		searcher = latest;
+		searcherChanged();
+		return true;
+	}
 
-			if (outputWriter != null) {
-				outputWriter.flush();
-				outputWriter.close();
-			}
+	/**
+	 * @return reader of the current searcher
+	 */
+	public IndexReader getIndexReader() {
+		return searcher.getIndexReader();
+	}
 
+	private void searcherChanged() throws IOException {
+		// only passage documents have the id as doc values
+		passageIndex = MultiDocValues.getNumericValues(
+				searcher.getIndexReader(), "id") != null;
+		titleDocValues = MultiDocValues.getBinaryValues(
+				searcher.getIndexReader(), "title") != null;
+		// cached hits are doc ids of the previous searcher
+		if (queryCache != null)
+			queryCache.clear();
+	}
+
+	public void closeSearcher() throws IOException {
+		printLatencies();
+		if (queryCache != null)
+			System.out.println(queryCache.report());
+		if (scoreCache != null) {
+			System.out.println(scoreCache.report());
+			scoreCache.close();
+			scoreCache = null;
+		}
+		if (hotTermsFile != null)
+			warmer.saveHotTerms(hotTermsFile, MAX_HOT_TERMS);
+		if (searcherManager != null && searcher != null) {
+			searcherManager.release(searcher);
+			searcher = null;
 		}
+		if (luceneReader != null)
+			luceneReader.close();
+	}
+
+	public void questionAnsweringByTopN(int topN) throws Exception {
+		answerQuestions(topN, StandardStrategy.TOP_N);
+	}
+
+	public void questionAnsweringWithoutLengthNorm(int topN) throws Exception {
+		answerQuestions(topN, StandardStrategy.NO_LENGTH_NORM);
 	}
 
 	public void questionAnsweringWithAND(int topN) throws Exception {
-		BufferedReader inputReader = null;
-		BufferedWriter outputWriter = null;
+		answerQuestions(topN, StandardStrategy.AND);
+	}
+
+	public void questionAnsweringWithANDCount(int topN) throws Exception {
+		answerQuestions(topN, StandardStrategy.AND_COUNT);
+	}
+
+	public void questionAnsweringWithORCount(int topN) throws Exception {
+		answerQuestions(topN, StandardStrategy.OR_COUNT);
+	}
+
+	/**
+	 * Answers the questions of the input file with every strategy in one
+	 * pass, in parallel if more than one thread is set. The answers of a
+	 * single strategy go to the output file, those of several to one file
+	 * each, named after the strategy. Each file is resumed after the last
+	 * question completed in it.
+	 */
+	public void answerQuestions(final int topN,
+			final AnswerStrategy... strategies) throws Exception {
+		OffsetLineReader inputReader = null;
+		QuestionOutput[] outputs = new QuestionOutput[strategies.length];
 
 		try {
-			searcher = new IndexSearcher(luceneReader);
+			openSearcher();
+
+			inputReader = new OffsetLineReader(new File(inputPath));
 
-			inputReader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(inputPath)));
-
-			File outputFileTest = new File(outputPath);
-			String prevId = null;
-			if (outputFileTest.exists()) {
-				prevId = readPreviousCompletedId();
-				System.out.println("Last completed Id: " + prevId + "\n\n");
-
-				outputWriter = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(outputPath, true)));
-			} else {
-				outputWriter = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(outputPath, false)));
-				// write file header
-				outputWriter.write("id,correctAnswer");
-				outputWriter.newLine();
-				outputWriter.flush();
+			for (int k = 0; k < strategies.length; k++) {
+				outputs[k] = new QuestionOutput(new File(outputPath(
+						strategies, k)), commitMillis);
+				if (outputs[k].getResumeId() != null)
+					System.out.println("Last completed Id: "
+							+ outputs[k].getResumeId() + " ("
+							+ strategies[k].getName() + ")\n\n");
 			}
 
-			String aLine;
 			// skip first line
 			inputReader.readLine();
 
-			boolean startQuery = false;
-			if (prevId == null)
-				startQuery = true;
-			while ((aLine = inputReader.readLine()) != null) {
-				if (startQuery) {
-					StringTokenizer tk = new StringTokenizer(aLine, "\t");
-					if (tk.countTokens() == 6) {
-						String id = tk.nextToken();
-						String question = escapeSymbols(tk.nextToken());
-
-						System.out.println("\n\nQuery id=" + id + " ===> "
-								+ question);
-
-						double maxScore = 0.0;
-						int finalAns = -1;
-						// get score from 4 queries
-						for (int i = 0; i < 4; i++) {
-							int answerId = (i + 1);
-
-							String qstring = question;
-							String ans = escapeSymbols(tk.nextToken());
-							qstring = createQueryString(qstring, ans);
-
-							QueryParser parser = new QueryParser("text",
-									analyzer);
-							parser.setDefaultOperator(Operator.AND);
-							Query query = parser
-									.parse("text:(" + qstring + ")");
-							System.out.println("Ans " + answerId + ":  " + ans);
-
-							// get top hits
-							TopScoreDocCollector collector = TopScoreDocCollector
-									.create(topN, true);
-							searcher.search(query, collector);
-							ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-							System.out.println("Found : " + hits.length
-									+ " hits.");
-							double sumScore = 0.0;
-							for (int j = 0; j < hits.length; j++) {
-								int docId = hits[j].doc;
-								Document d = searcher.doc(docId);
-								String title = d.get("title");
-								String text = d.get("text");
-								double score = hits[j].score;
-								System.out.println((j + 1) + ": title=" + title
-										+ ", score=" + score);
-
-								sumScore += score;
-							}
-
-							if (sumScore > maxScore) {
-								maxScore = sumScore;
-								finalAns = answerId;
-							}
-						} // end of for
-
-						if (maxScore == 0.0) {
-							tk = new StringTokenizer(aLine, "\t");
-							tk.nextToken();
-							escapeSymbols(tk.nextToken());
-
-							// get score from 4 queries
-							for (int i = 0; i < 4; i++) {
-								int answerId = (i + 1);
-
-								String qstring = question;
-								String ans = escapeSymbols(tk.nextToken());
-								qstring = createQueryString(qstring, ans);
-
-								QueryParser parser = new QueryParser("text",
-										analyzer);
-								parser.setDefaultOperator(Operator.OR);
-								Query query = parser.parse("text:(" + qstring
-										+ ")");
-								System.out.println("Ans " + answerId + ":  "
-										+ ans);
-
-								// get top hits
-								TopScoreDocCollector collector = TopScoreDocCollector
-										.create(topN, true);
-								searcher.search(query, collector);
-								ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-								System.out.println("Found : " + hits.length
-										+ " hits.");
-								double sumScore = 0.0;
-								for (int j = 0; j < hits.length; j++) {
-									int docId = hits[j].doc;
-									Document d = searcher.doc(docId);
-									String title = d.get("title");
-									String text = d.get("text");
-									double score = hits[j].score;
-									System.out.println((j + 1) + ": title="
-											+ title + ", score=" + score);
-
-									sumScore += score;
-								}
-
-								if (sumScore > maxScore) {
-									maxScore = sumScore;
-									finalAns = answerId;
-								}
-							} // end of for
+			new QuestionRunner(threads).run(inputReader, outputs,
+					new QuestionRunner.Answerer() {
+						@Override
+						public String[] answer(String aLine, boolean[] pending)
+								throws Exception {
+							return answerQuestion(aLine, strategies, pending,
+									topN);
 						}
-
-						if (finalAns > 0) {
-							String ansStr = "";
-							if (finalAns == 1)
-								ansStr = "A";
-							else if (finalAns == 2)
-								ansStr = "B";
-							else if (finalAns == 3)
-								ansStr = "C";
-							else if (finalAns == 4)
-								ansStr = "D";
-
-							outputWriter.write(id);
-							outputWriter.write(",");
-							outputWriter.write(ansStr);
-							outputWriter.newLine();
-
-							outputWriter.flush();
-						}
-					}
-
-				}
-
-				if (prevId != null && aLine.startsWith(prevId))
-					startQuery = true;
-
-			} // end of while
+					});
 
 		} finally {
-			if (luceneReader != null)
-				luceneReader.close();
+			closeSearcher();
 
 			if (inputReader != null)
 				inputReader.close();
 
-			if (outputWriter != null) {
-				outputWriter.flush();
-				outputWriter.close();
+			for (QuestionOutput output : outputs) {
+				if (output != null)
+					output.close();
 			}
 
 		}
 	}
 
-	public void questionAnsweringWithANDCount(int topN) throws Exception {
-		BufferedReader inputReader = null;
-		BufferedWriter outputWriter = null;
-
-		try {
-			searcher = new IndexSearcher(luceneReader);
+	/**
+	 * The output file, or for several strategies the output file with the
+	 * name of the strategy before its extension.
+	 */
+	private String outputPath(AnswerStrategy[] strategies, int k) {
+		if (strategies.length == 1)
+			return outputPath;
+		String name = new File(outputPath).getName();
+		int dot = name.lastIndexOf('.');
+		int end = dot > 0 ? outputPath.length() - name.length() + dot
+				: outputPath.length();
+		return outputPath.substring(0, end) + "-" + strategies[k].getName()
+				+ outputPath.substring(end);
+	}
 
-			inputReader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(inputPath)));
-
-			File outputFileTest = new File(outputPath);
-			String prevId = null;
-			if (outputFileTest.exists()) {
-				prevId = readPreviousCompletedId();
-				System.out.println("Last completed Id: " + prevId + "\n\n");
-
-				outputWriter = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(outputPath, true)));
-			} else {
-				outputWriter = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(outputPath, false)));
-				// write file header
-				outputWriter.write("id,correctAnswer");
-				outputWriter.newLine();
-				outputWriter.flush();
-			}
+	private static String toAnswerLetter(int answerId) {
+		return String.valueOf((char) ('A' + answerId - 1));
+	}
 
-			String aLine;
-			// skip first line
-			inputReader.readLine();
+	/**
+	 * Answers a question line with the pending strategies.
+	 */
+	private String[] answerQuestion(String aLine, AnswerStrategy[] strategies,
+			boolean[] pending, int topN) throws IOException {
+		QuestionLine line = questionLines.get().parse(aLine);
+		if (line.size() != 6)
+			return null;
+		long start = startQuestion();
+		String id = line.field(0).toString();
+		CharSequence question = line.field(1);
+		CharSequence[] answers = new CharSequence[4];
+		for (int i = 0; i < 4; i++)
+			answers[i] = line.field(i + 2);
+
+		System.out.println("\n\nQuery id=" + id + " ===> "
+				+ question);
+
+		AskedQuestion asked = new AskedQuestion(question, answers);
+		String[] rows = new String[strategies.length];
+		for (int k = 0; k < strategies.length; k++) {
+			if (!pending[k])
+				continue;
+			if (strategies.length > 1)
+				System.out.println("Strategy " + strategies[k].getName());
+
+			int finalAns = bestAnswer(scoreQuestion(strategies[k], asked, topN));
+			if (finalAns > 0)
+				rows[k] = id + "," + toAnswerLetter(finalAns);
+		}
+		finishQuestion(start);
+		return rows;
+	}
 
-			boolean startQuery = false;
-			if (prevId == null)
-				startQuery = true;
-			while ((aLine = inputReader.readLine()) != null) {
-				if (startQuery) {
-					StringTokenizer tk = new StringTokenizer(aLine, "\t");
-					if (tk.countTokens() == 6) {
-						String id = tk.nextToken();
-						String question = escapeSymbols(tk.nextToken());
-
-						System.out.println("\n\nQuery id=" + id + " ===> "
-								+ question);
-
-						double maxScore = 0.0;
-						int finalAns = -1;
-						// get score from 4 queries
-						for (int i = 0; i < 4; i++) {
-							int answerId = (i + 1);
-
-							String qstring = question;
-							String ans = escapeSymbols(tk.nextToken());
-							qstring = createQueryString(qstring, ans);
-
-							QueryParser parser = new QueryParser("text",
-									analyzer);
-							parser.setDefaultOperator(Operator.AND);
-							Query query = parser
-									.parse("text:(" + qstring + ")");
-							System.out.println("Ans " + answerId + ":  " + ans);
-
-							// get top hits
-							TopScoreDocCollector collector = TopScoreDocCollector
-									.create(topN, true);
-							searcher.search(query, collector);
-							ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-							System.out.println("Found : " + hits.length
-									+ " hits.");
-							double sumScore = 0.0;
-							for (int j = 0; j < hits.length; j++) {
-								int docId = hits[j].doc;
-								Document d = searcher.doc(docId);
-								String title = d.get("title");
-								String text = d.get("text");
-								double score = hits[j].score;
-								System.out.println((j + 1) + ": title=" + title
-										+ ", score=" + score);
-
-								sumScore += score;
-							}
-
-							if (sumScore > maxScore) {
-								maxScore = sumScore;
-								finalAns = answerId;
-							}
-						} // end of for
-
-						if (maxScore == 0.0) {
-							tk = new StringTokenizer(aLine, "\t");
-							tk.nextToken();
-							escapeSymbols(tk.nextToken());
-
-							// get score from 4 queries
-							for (int i = 0; i < 4; i++) {
-								int answerId = (i + 1);
-
-								String qstring = question;
-								String ans = escapeSymbols(tk.nextToken());
-								qstring = createQueryString(qstring, ans);
-
-								QueryParser parser = new QueryParser("text",
-										analyzer);
-								parser.setDefaultOperator(Operator.OR);
-								Query query = parser.parse("text:(" + qstring
-										+ ")");
-								System.out.println("Ans " + answerId + ":  "
-										+ ans);
-
-								List<String> ansTokens = extractAnalyzedTokens(ans);
-								System.out.println("Ans Tokens: "
-										+ ansTokens.toString());
-
-								// get top hits
-								TopScoreDocCollector collector = TopScoreDocCollector
-										.create(topN, true);
-								searcher.search(query, collector);
-								ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-								System.out.println("Found : " + hits.length
-										+ " hits.");
-								double sumScore = 0.0;
-								for (int j = 0; j < hits.length; j++) {
-									int docId = hits[j].doc;
-									Document d = searcher.doc(docId);
-									String title = d.get("title");
-									String text = d.get("text");
-
-									double score = hits[j].score;
-									System.out.println((j + 1) + ": title="
-											+ title + ", score=" + score);
-
-									Hashtable<String, Integer> tfMap = getTfMap(text);
-
-									// use count as score
-									for (String a : ansTokens) {
-										if (tfMap.containsKey(a))
-											sumScore += tfMap.get(a);
-									}
-								}
-
-								if (sumScore > maxScore) {
-									maxScore = sumScore;
-									finalAns = answerId;
-								}
-							} // end of for
-						}
+	/**
+	 * Scores the answers of a question on the open searcher, which may be
+	 * done on several threads at once.
+	 *
+	 * @return score of every answer, see {@link #bestAnswer}
+	 */
+	public double[] scoreQuestion(String question, String[] answers,
+			AnswerStrategy strategy, int topN) throws IOException {
+		return scoreQuestion(strategy, new AskedQuestion(question, answers),
+				topN);
+	}
 
-						if (finalAns > 0) {
-							String ansStr = "";
-							if (finalAns == 1)
-								ansStr = "A";
-							else if (finalAns == 2)
-								ansStr = "B";
-							else if (finalAns == 3)
-								ansStr = "C";
-							else if (finalAns == 4)
-								ansStr = "D";
-
-							outputWriter.write(id);
-							outputWriter.write(",");
-							outputWriter.write(ansStr);
-							outputWriter.newLine();
-
-							outputWriter.flush();
-						}
-					}
+	private double[] scoreQuestion(AnswerStrategy strategy,
+			AskedQuestion asked, int topN) throws IOException {
+		double[] scores = scoreAnswers(strategy, asked, false, topN);
+		if (strategy.needsFallback(scores))
+			scores = scoreAnswers(strategy, asked, true, topN);
+		return scores;
+	}
 
-				}
+	/**
+	 * @return number of the answer with the highest score above zero, the
+	 *         first of equal ones, or -1 if none
+	 */
+	public static int bestAnswer(double[] scores) {
+		double maxScore = 0.0;
+		int finalAns = -1;
+		for (int i = 0; i < scores.length; i++) {
+			if (scores[i] > maxScore) {
+				maxScore = scores[i];
+				finalAns = i + 1;
+			}
+		}
+		return finalAns;
+	}
 
-				if (prevId != null && aLine.startsWith(prevId))
-					startQuery = true;
+	private double[] scoreAnswers(AnswerStrategy strategy,
+			AskedQuestion asked, boolean fallback, int topN)
+			throws IOException {
+		// get score from 4 queries
+		Query[] queries = strategy.createQueries(asked, fallback);
+		Hits[] answerHits = asked.search(searcher(strategy.getSimilarity()),
+				queries, topN);
+		double[] scores = new double[answerHits.length];
+		for (int i = 0; i < answerHits.length; i++) {
+			scores[i] = strategy.score(answerHits[i], fallback);
+			if (!logHits)
+				continue;
+
+			int answerId = (i + 1);
+			System.out.println("Ans " + answerId + ":  " + asked.answers[i]);
+
+			// get top hits
+			ScoreDoc[] hits = answerHits[i].getHits();
+
+			System.out.println("Found : " + hits.length
+					+ " hits.");
+			String[] titles = answerHits[i].getTitles();
+			for (int j = 0; j < hits.length; j++) {
+				String title = titles[j];
+				double score = hits[j].score;
+				System.out.println((j + 1) + ": title=" + title
+						+ ", score=" + score);
+			}
+		}
+		return scores;
+	}
 
-			} // end of while
+	/**
+	 * The searcher scoring with the similarity, null for the default one.
+	 */
+	private IndexSearcher searcher(Similarity similarity) {
+		if (similarity == null)
+			return searcher;
+		IndexSearcher similar = new IndexSearcher(searcher.getIndexReader());
+		similar.setSimilarity(similarity);
+		return similar;
+	}
 
-		} finally {
-			if (luceneReader != null)
-				luceneReader.close();
+	/**
+	 * A question being answered, with the hits of the queries searched for it
+	 * so far, shared by the strategies.
+	 */
+	private class AskedQuestion implements AnswerStrategy.Question {
+
+		final CharSequence[] answers;
+		// analyzed once for all the queries
+		private final AnswerQueryBuilder.Analyzed analyzedQuestion;
+		private final AnswerQueryBuilder.Analyzed[] analyzedAnswers;
+		// by query key, which includes the similarity
+		private final Map<String, Hits> searched = new HashMap<String, Hits>();
+
+		AskedQuestion(CharSequence question, CharSequence[] answers)
+				throws IOException {
+			this.answers = answers;
+			this.analyzedQuestion = queryBuilder.analyzeQuestion(question);
+			this.analyzedAnswers = new AnswerQueryBuilder.Analyzed[answers.length];
+			for (int i = 0; i < answers.length; i++)
+				analyzedAnswers[i] = queryBuilder.analyzeAnswer(answers[i]);
+		}
 
-			if (inputReader != null)
-				inputReader.close();
+		@Override
+		public Query[] answerQueries(Occur occur, String... fields) {
+			Query[] queries = new Query[analyzedAnswers.length];
+			for (int i = 0; i < analyzedAnswers.length; i++)
+				queries[i] = queryBuilder.build(analyzedQuestion,
+						analyzedAnswers[i], occur, fields);
+			return queries;
+		}
 
-			if (outputWriter != null) {
-				outputWriter.flush();
-				outputWriter.close();
+		/**
+		 * Hits of the query of every answer, searched unless another strategy
+		 * already did.
+		 */
+		Hits[] search(IndexSearcher answerSearcher, Query[] queries, int topN)
+				throws IOException {
+			String[] keys = new String[queries.length];
+			boolean searchedAll = true;
+			for (int i = 0; i < queries.length; i++) {
+				keys[i] = QueryResultCache.key(queries[i],
+						answerSearcher.getSimilarity());
+				searchedAll &= searched.containsKey(keys[i]);
+			}
+			if (!searchedAll) {
+				ScoreDoc[][] hits = QuestionToWiki.this.search(answerSearcher,
+						queries, topN);
+				for (int i = 0; i < queries.length; i++) {
+					if (!searched.containsKey(keys[i]))
+						searched.put(keys[i], new Hits(hits[i],
+								analyzedAnswers[i]));
+				}
 			}
 
+			Hits[] answerHits = new Hits[queries.length];
+			for (int i = 0; i < queries.length; i++)
+				answerHits[i] = searched.get(keys[i]);
+			return answerHits;
 		}
+
 	}
 
-	public void questionAnsweringWithORCount(int topN) throws Exception {
-		BufferedReader inputReader = null;
-		BufferedWriter outputWriter = null;
+	/**
+	 * Top hits of an answer query, with their titles and answer term counts
+	 * fetched when first needed.
+	 */
+	private class Hits implements AnswerStrategy.AnswerHits {
 
-		try {
-			searcher = new IndexSearcher(luceneReader);
+		private final ScoreDoc[] hits;
+		private final AnswerQueryBuilder.Analyzed answer;
+		private String[] titles;
+		private int[] counts;
 
-			inputReader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(inputPath)));
-
-			File outputFileTest = new File(outputPath);
-			String prevId = null;
-			if (outputFileTest.exists()) {
-				prevId = readPreviousCompletedId();
-				System.out.println("Last completed Id: " + prevId + "\n\n");
-
-				outputWriter = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(outputPath, true)));
-			} else {
-				outputWriter = new BufferedWriter(new OutputStreamWriter(
-						new FileOutputStream(outputPath, false)));
-				// write file header
-				outputWriter.write("id,correctAnswer");
-				outputWriter.newLine();
-				outputWriter.flush();
-			}
+		Hits(ScoreDoc[] hits, AnswerQueryBuilder.Analyzed answer) {
+			this.hits = hits;
+			this.answer = answer;
+		}
 
-			String aLine;
-			// skip first line
-			inputReader.readLine();
+		@Override
+		public ScoreDoc[] getHits() {
+			return hits;
+		}
 
-			boolean startQuery = false;
-			if (prevId == null)
-				startQuery = true;
-			while ((aLine = inputReader.readLine()) != null) {
-				if (startQuery) {
-					StringTokenizer tk = new StringTokenizer(aLine, "\t");
-					if (tk.countTokens() == 6) {
-						String id = tk.nextToken();
-						String question = escapeSymbols(tk.nextToken());
-
-						System.out.println("\n\nQuery id=" + id + " ===> "
-								+ question);
-
-						double maxScore = 0.0;
-						int finalAns = -1;
-						// get score from 4 queries
-						for (int i = 0; i < 4; i++) {
-							int answerId = (i + 1);
-
-							String qstring = question;
-							String ans = escapeSymbols(tk.nextToken());
-							qstring = createQueryString(qstring, ans);
-
-							QueryParser parser = new QueryParser("text",
-									analyzer);
-							parser.setDefaultOperator(Operator.OR);
-							Query query = parser
-									.parse("text:(" + qstring + ")");
-							System.out.println("Ans " + answerId + ":  " + ans);
-
-							List<String> ansTokens = extractAnalyzedTokens(ans);
-							System.out.println("Ans Tokens: "
-									+ ansTokens.toString());
-
-							// get top hits
-							TopScoreDocCollector collector = TopScoreDocCollector
-									.create(topN, true);
-							searcher.search(query, collector);
-							ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-							System.out.println("Found : " + hits.length
-									+ " hits.");
-							double sumScore = 0.0;
-							for (int j = 0; j < hits.length; j++) {
-								int docId = hits[j].doc;
-								Document d = searcher.doc(docId);
-								String title = d.get("title");
-								String text = d.get("text");
-
-								double score = hits[j].score;
-								System.out.println((j + 1) + ": title=" + title
-										+ ", score=" + score);
-
-								Hashtable<String, Integer> tfMap = getTfMap(text);
-
-								// use count as score
-								for (String a : ansTokens) {
-									if (tfMap.containsKey(a))
-										sumScore += tfMap.get(a);
-								}
-							}
-
-							if (sumScore > maxScore) {
-								maxScore = sumScore;
-								finalAns = answerId;
-							}
-						} // end of for
-
-						if (finalAns > 0) {
-							String ansStr = "";
-							if (finalAns == 1)
-								ansStr = "A";
-							else if (finalAns == 2)
-								ansStr = "B";
-							else if (finalAns == 3)
-								ansStr = "C";
-							else if (finalAns == 4)
-								ansStr = "D";
-
-							outputWriter.write(id);
-							outputWriter.write(",");
-							outputWriter.write(ansStr);
-							outputWriter.newLine();
-
-							outputWriter.flush();
-						}
-					}
+		String[] getTitles() throws IOException {
+			if (titles == null)
+				titles = QuestionToWiki.this.getTitles(hits);
+			return titles;
+		}
 
-				}
+		@Override
+		public int[] getAnswerTermCounts() throws IOException {
+			if (counts == null) {
+				List<String> ansTokens = validTerms(answer.getTerms());
+				if (logHits)
+					System.out.println("Ans Tokens: " + ansTokens.toString());
+				counts = countTerms(hits, ansTokens);
+			}
+			return counts;
+		}
 
-				if (prevId != null && aLine.startsWith(prevId))
-					startQuery = true;
+	}
 
-			} // end of while
+	/**
+	 * Scores the clauses the four answer queries of a question share once,
+	 * see {@link QuestionCandidates}. Hits are the same up to float rounding.
+	 */
+	public void setShareQuestion(boolean shareQuestion) {
+		this.shareQuestion = shareQuestion;
+	}
 
-		} finally {
-			if (luceneReader != null)
-				luceneReader.close();
+	/**
+	 * Keeps the top hits of up to the given number of queries, 0 for no
+	 * cache.
+	 */
+	public void setQueryCache(int maxEntries) {
+		this.queryCache = maxEntries > 0 ? new QueryResultCache(maxEntries)
+				: null;
+	}
 
-			if (inputReader != null)
-				inputReader.close();
+	/**
+	 * Keeps the top hits and answer term counts in the file, to be read
+	 * instead of searched by later runs on the same index.
+	 */
+	public void setScoreCacheFile(File scoreCacheFile) {
+		this.scoreCacheFile = scoreCacheFile;
+	}
 
-			if (outputWriter != null) {
-				outputWriter.flush();
-				outputWriter.close();
-			}
+	public void setPassageScore(PassageScore passageScore) {
+		this.passageScore = passageScore;
+	}
 
-		}
+	/**
+	 * Top hits of the query of every answer. With shared question scoring the
+	 * clauses common to all queries are evaluated once.
+	 */
+	private ScoreDoc[][] search(IndexSearcher searcher, Query[] queries,
+			int topN) throws IOException {
+		QuestionCandidates candidates = null;
+		if (shareQuestion && !allCached(searcher, queries, fetchSize(topN)))
+			candidates = QuestionCandidates.create(searcher, queries);
+
+		ScoreDoc[][] hits = new ScoreDoc[queries.length][];
+		for (int i = 0; i < queries.length; i++)
+			hits[i] = search(searcher, queries[i], candidates, i, topN);
+		return hits;
 	}
 
-	private String createQueryString(String qstring, String ans) {
-		if (qstring.contains("__________"))
-			qstring = qstring.replace("__________", " " + ans + " ");
-		else {
-			qstring = qstring.replace("?", " ");
-			qstring = qstring + " " + ans;
+	private ScoreDoc[] search(Query query, int topN) throws IOException {
+		return search(searcher, query, null, -1, topN);
+	}
+
+	/**
+	 * Top hits of the query, or of the query of the answer in the candidates
+	 * if not null. On a passage index the hits are grouped by article, unless
+	 * the passage score is NONE, and each article is represented by its best
+	 * passage.
+	 */
+	private ScoreDoc[] search(IndexSearcher searcher, Query query,
+			QuestionCandidates candidates, int answer, int topN)
+			throws IOException {
+		if (hotTermsFile != null && !warmingUp) {
+			Set<Term> terms = new HashSet<Term>();
+			query.extractTerms(terms);
+			warmer.countSearched(terms);
 		}
 
-		return qstring;
-	}
+		if (!isGrouped())
+			return topDocs(searcher, query, candidates, answer, topN);
+
+		ScoreDoc[] passages = topDocs(searcher, query, candidates, answer,
+				fetchSize(topN));
+		// doc values are not shared between threads, get them per search
+		NumericDocValues passageArticleIds = MultiDocValues.getNumericValues(
+				searcher.getIndexReader(), "id");
+		Map<Long, ScoreDoc> articles = new LinkedHashMap<Long, ScoreDoc>();
+		for (ScoreDoc hit : passages) {
+			long articleId = passageArticleIds.get(hit.doc);
+			ScoreDoc article = articles.get(articleId);
+			if (article == null)
+				articles.put(articleId, new ScoreDoc(hit.doc, hit.score));
+			else if (passageScore == PassageScore.SUM)
+				article.score += hit.score;
+		}
 
-	private String escapeSymbols(String origin) {
-		// escape + - && || ! ( ) { } [ ] ^ " ~ * ? : \
-		return origin.replace("(", " ").replace(")", " ").replace("+", " ")
-				.replace("-", " ").replace("&", " ").replace("|", " ")
-				.replace("{", " ").replace("}", " ").replace("[", " ")
-				.replace("]", " ").replace("^", " ").replace("\"", " ")
-				.replace("~", " ").replace("*", " ").replace("?", " ")
-				.replace(":", " ").replace("\\", " ").replace("/", " ");
+		List<ScoreDoc> hits = new ArrayList<ScoreDoc>(articles.values());
+		if (passageScore == PassageScore.SUM) {
+			Collections.sort(hits, new Comparator<ScoreDoc>() {
+				@Override
+				public int compare(ScoreDoc a, ScoreDoc b) {
+					return Float.compare(b.score, a.score);
+				}
+			});
+		}
+		return hits.subList(0, Math.min(topN, hits.size())).toArray(
+				new ScoreDoc[0]);
 	}
 
-	private String readPreviousCompletedId() {
-		String prevId = null;
-
-		String aLine;
-		try {
-			BufferedReader inputReader = new BufferedReader(
-					new InputStreamReader(new FileInputStream(outputPath)));
+	private boolean isGrouped() {
+		return passageIndex && passageScore != PassageScore.NONE;
+	}
 
-			// read until last line
-			while ((aLine = inputReader.readLine()) != null) {
-				prevId = aLine.split(",")[0];
-			}
+	/**
+	 * Number of hits searched for topN hits.
+	 */
+	private int fetchSize(int topN) {
+		return isGrouped() ? topN * PASSAGES_PER_ARTICLE : topN;
+	}
 
-			inputReader.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+	private boolean allCached(IndexSearcher searcher, Query[] queries, int n) {
+		if (queryCache == null && scoreCache == null)
+			return false;
+		for (Query query : queries) {
+			String key = QueryResultCache.key(query, searcher.getSimilarity());
+			if ((queryCache == null || !queryCache.contains(key, n))
+					&& (scoreCache == null || !scoreCache.containsHits(key, n)))
+				return false;
 		}
-
-		return prevId;
+		return true;
 	}
 
-	private List<String> extractAnalyzedTokens(String text) {
-		List<String> tokens = new ArrayList<String>();
-		try {
-			tokens = getTermsAsListByLucene(text, true, true);
-		} catch (IOException e) {
-			e.printStackTrace();
+	private ScoreDoc[] topDocs(IndexSearcher searcher, Query query,
+			QuestionCandidates candidates, int answer, int n)
+			throws IOException {
+		String key = null;
+		if (queryCache != null || scoreCache != null)
+			key = QueryResultCache.key(query, searcher.getSimilarity());
+		if (queryCache != null) {
+			ScoreDoc[] cached = queryCache.get(key, n);
+			if (cached != null)
+				return cached;
+		}
+		if (scoreCache != null) {
+			ScoreDoc[] cached = scoreCache.getHits(key, n);
+			if (cached != null) {
+				if (queryCache != null)
+					queryCache.put(key, n, cached);
+				return cached;
+			}
 		}
 
-		return tokens;
+		ScoreDoc[] hits;
+		if (candidates != null)
+			hits = candidates.topDocs(answer, n);
+		else {
+			TopScoreDocCollector collector = TopScoreDocCollector.create(n,
+					true);
+			searcher.search(query, collector);
+			hits = collector.topDocs().scoreDocs;
+		}
+		if (queryCache != null)
+			queryCache.put(key, n, hits);
+		if (scoreCache != null)
+			scoreCache.putHits(key, n, hits);
+		return hits;
 	}
 
-	private Hashtable<String, Integer> getTfMap(String text) {
-		Hashtable<String, Integer> map = new Hashtable<String, Integer>();
-		List<String> tokens = extractAnalyzedTokens(text);
-		for (String t : tokens) {
-			if (map.containsKey(t))
-				map.put(t, map.get(t) + 1);
+	/**
+	 * Titles of the hits, from doc values if the index has them.
+	 */
+	private String[] getTitles(ScoreDoc[] hits) throws IOException {
+		String[] titles = new String[hits.length];
+		// doc values are not shared between threads, get them per call
+		BinaryDocValues titleValues = titleDocValues ? MultiDocValues
+				.getBinaryValues(searcher.getIndexReader(), "title") : null;
+		for (int i = 0; i < hits.length; i++) {
+			BytesRef title = titleValues != null ? titleValues
+					.get(hits[i].doc) : null;
+			// empty in segments written without title doc values
+			if (title != null && title.length > 0)
+				titles[i] = title.utf8ToString();
 			else
-				map.put(t, 1);
+				titles[i] = loadFields(hits[i].doc, "title").get("title");
 		}
-
-		return map;
+		return titles;
 	}
 
-	private List<String> getTermsAsListByLucene(String text, boolean english,
-			boolean digits) throws IOException {
-		List<String> result = new ArrayList<String>();
+	private Document loadFields(int docId, String... fields)
+			throws IOException {
+		SelectedFieldsVisitor visitor = new SelectedFieldsVisitor(fields);
+		searcher.doc(docId, visitor);
+		return visitor.getDocument();
+	}
 
-		StandardTokenizer tokenzier = new StandardTokenizer(new StringReader(
-				text));
-		TokenStream ts = new StopFilter(tokenzier,
-				StandardAnalyzer.STOP_WORDS_SET);
-		int flags = WordDelimiterFilter.SPLIT_ON_NUMERICS
-				| WordDelimiterFilter.SPLIT_ON_CASE_CHANGE
-				| WordDelimiterFilter.GENERATE_NUMBER_PARTS
-				| WordDelimiterFilter.GENERATE_WORD_PARTS;
-		ts = new WordDelimiterFilter(ts, flags, null);
-		ts = new LowerCaseFilter(ts);
-		ts = new PorterStemFilter(ts);
-		try {
-			CharTermAttribute termAtt = ts
-					.addAttribute(CharTermAttribute.class);
-			ts.reset();
-			while (ts.incrementToken()) {
-				if (termAtt.length() > 0) {
-					String word = termAtt.toString();
-
-					boolean valid = false;
-					if (english && !digits)
-						valid = isAllEnglish(word);
-					else if (!english && digits)
-						valid = isAllDigits(word);
-					else if (english && digits)
-						valid = isAllEnglishAndDigits(word);
-
-					if (valid)
-						result.add(word);
+	/**
+	 * Frequency of the terms in the text field of each hit, from the
+	 * postings, the same as counting them in the analyzed text of the hit.
+	 * A term listed twice counts twice.
+	 */
+	private int[] countTerms(ScoreDoc[] hits, List<String> terms)
+			throws IOException {
+		int[] counts = new int[hits.length];
+		if (hits.length == 0 || terms.isEmpty())
+			return counts;
+
+		String key = null;
+		if (scoreCache != null) {
+			StringBuilder sb = new StringBuilder("text:").append(terms);
+			for (ScoreDoc hit : hits)
+				sb.append(' ').append(hit.doc);
+			key = sb.toString();
+			int[] cached = scoreCache.getCounts(key);
+			if (cached != null)
+				return cached;
+		}
 
+		// hit docs in order, with their position, to advance the postings
+		long[] byDoc = new long[hits.length];
+		for (int i = 0; i < hits.length; i++)
+			byDoc[i] = ((long) hits[i].doc << 32) | i;
+		Arrays.sort(byDoc);
+
+		BytesRef[] termBytes = new BytesRef[terms.size()];
+		for (int t = 0; t < termBytes.length; t++)
+			termBytes[t] = new BytesRef(terms.get(t));
+
+		TermsEnum termsEnum = null;
+		DocsEnum docs = null;
+		int h = 0;
+		for (AtomicReaderContext leaf : searcher.getIndexReader().leaves()) {
+			int first = h;
+			int leafEnd = leaf.docBase + leaf.reader().maxDoc();
+			while (h < byDoc.length && (int) (byDoc[h] >>> 32) < leafEnd)
+				h++;
+			Terms fieldTerms = leaf.reader().terms("text");
+			if (first == h || fieldTerms == null)
+				continue;
+
+			termsEnum = fieldTerms.iterator(termsEnum);
+			for (BytesRef term : termBytes) {
+				if (!termsEnum.seekExact(term))
+					continue;
+				docs = termsEnum.docs(null, docs, DocsEnum.FLAG_FREQS);
+				for (int k = first; k < h; k++) {
+					int doc = (int) (byDoc[k] >>> 32) - leaf.docBase;
+					if (docs.docID() < doc
+							&& docs.advance(doc) == DocIdSetIterator.NO_MORE_DOCS)
+						break;
+					if (docs.docID() == doc)
+						counts[(int) byDoc[k]] += docs.freq();
 				}
 			}
-
-		} finally {
-			// Fixed error : close ts:TokenStream
-			ts.end();
-			ts.close();
 		}
+		if (scoreCache != null)
+			scoreCache.putCounts(key, counts);
+		return counts;
+	}
 
+	/**
+	 * @return the analyzed terms that are English words or numbers
+	 */
+	private static List<String> validTerms(List<String> terms) {
+		List<String> result = new ArrayList<String>();
+		for (String term : terms) {
+			if (term.length() > 0 && isValidTerm(term, true, true))
+				result.add(term);
+		}
 		return result;
 	}
 
+	/**
+	 * Same as isAllEnglish, isAllDigits or isAllEnglishAndDigits on a single
+	 * term.
+	 */
+	private static boolean isValidTerm(CharSequence term, boolean english,
+			boolean digits) {
+		for (int i = 0; i < term.length(); i++) {
+			char c = term.charAt(i);
+			boolean valid = (english && (Character.isAlphabetic(c) || c == '-'))
+					|| (digits && Character.isDigit(c));
+			if (!valid)
+				return false;
+		}
+		return english || digits;
+	}
+
 	public boolean isAllEnglish(String text) {
 		boolean result = true;
 
@@ -1027,12 +1023,23 @@ public class QuestionToWiki {
 	}
 
 	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		args = options.getPositional().toArray(new String[0]);
 		if (args.length != 4) {
 			// "java -cp lucene-wikipedia-0.0.1-jar-with-dependencies.jar markpeng.wiki.QuestionToWiki /home/uitox/wiki/lucene-wiki-index validation_set.tsv lucene_top10_nolengthnorm_or_submit.csv"
 			System.err
 					.println("Usage: java -cp lucene-wikipedia-0.0.1-jar-with-dependencies.jar "
 							+ "markpeng.wiki.QuestionToWiki <path of lucene index folder> "
-							+ " <input file> " + "<output file> <topN>");
+							+ " <input file> " + "<output file> <topN> "
+							+ "[--passageScore=<none|max|sum>] [--warmup] "
+							+ "[--preload=<all|ext,ext,...>] [--warmTerms] "
+							+ "[--hotTerms=<path>] [--warmQuestions=<N> "
+							+ "[--warmQuestionsFile=<tsv>]] "
+							+ "[--latencyQuestions=<N>] [--threads=<N>] "
+							+ "[--shareQuestion] [--queryCache=<entries>] "
+							+ "[--scoreCache[=<path>]] "
+							+ "[--strategies=<all|name,name,...>] "
+							+ "[--commitInterval=<ms>]");
 			System.exit(-1);
 		}
 
@@ -1043,12 +1050,39 @@ public class QuestionToWiki {
 
 		QuestionToWiki worker = new QuestionToWiki(luceneFolderPath, inputPath,
 				outputPath);
-		// worker.questionAnswering(1);
-		// worker.questionAnsweringByTopN(topN);
-		// worker.questionAnsweringWithoutLengthNorm(topN);
-		// worker.questionAnsweringWithAND(topN);
-		// worker.questionAnsweringWithANDCount(topN);
-		worker.questionAnsweringWithORCount(topN);
+		// warm-up: --warmup turns on everything but the replay
+		boolean warmup = options.has("warmup");
+		String preload = options.getString("preload", warmup ? "all" : null);
+		if (preload != null)
+			worker.setPreload(true, "all".equals(preload) ? null
+					: new HashSet<String>(Arrays.asList(preload.split(","))));
+		worker.setWarmTerms(warmup || options.has("warmTerms"));
+		if (warmup || options.has("hotTerms"))
+			worker.setHotTermsFile(new File(options.getString("hotTerms",
+					new File(luceneFolderPath, IndexWarmer.HOT_TERMS_FILE)
+							.getPath())));
+		worker.setWarmQuestions(
+				options.getString("warmQuestionsFile", inputPath),
+				options.getInt("warmQuestions", 0));
+		worker.setLatencyQuestions(options.getInt("latencyQuestions", 100));
+		worker.setThreads(options.getInt("threads", 1));
+		worker.setCommitInterval(options.getLong("commitInterval", 1000));
+		worker.setShareQuestion(options.has("shareQuestion"));
+		worker.setQueryCache(options.getInt("queryCache", 0));
+		// a bare --scoreCache keeps the file in the index folder
+		String scoreCache = options.getString("scoreCache", null);
+		if ("true".equals(scoreCache))
+			scoreCache = new File(luceneFolderPath, ScoreCacheFile.DEFAULT_FILE)
+					.getPath();
+		if (scoreCache != null)
+			worker.setScoreCacheFile(new File(scoreCache));
+		// on a passage index
+		worker.setPassageScore(PassageScore.valueOf(options.getString(
+				"passageScore", "max").toUpperCase()));
+		// topN, noLengthNorm, and, andCount, orCount; several answer in one
+		// pass, to an output file each
+		worker.answerQuestions(topN, StandardStrategy.forNames(options
+				.getString("strategies", "orCount")));
 	}
 
 }
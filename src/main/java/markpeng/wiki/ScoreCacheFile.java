@@ -0,0 +1,315 @@
+package markpeng.wiki;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.CompositeReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Top hits and answer term counts of earlier runs, kept in an append-only
+ * file next to the index so a rerun of the same queries reads them instead of
+ * searching. The file starts with a stamp of the index commit(s) it was
+ * computed on and is emptied when opened on a different commit, since the
+ * cached doc ids and scores are only valid for that index. The records of
+ * earlier runs are memory-mapped and decoded when looked up, records of this
+ * run are appended and kept in memory. A record torn by a crash is cut off
+ * when the file is opened again.
+ * <p>
+ * File layout: magic, stamp, then records of key, type and values: the n
+ * searched for, the doc ids and the scores of hits, or the per-hit counts.
+ */
+public class ScoreCacheFile {
+
+	public static final String DEFAULT_FILE = "score-cache.dat";
+
+	private static final int MAGIC = 0x53434331;
+	private static final byte HITS = 1;
+	private static final byte COUNTS = 2;
+	private static final long MAX_SIZE = Integer.MAX_VALUE;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	// records of earlier runs
+	private MappedByteBuffer mapped;
+	private final Map<String, Integer> mappedValues = new HashMap<String, Integer>();
+	// records of this run
+	private final Map<String, Object> added = new HashMap<String, Object>();
+	private long end;
+	private long hits = 0;
+	private long misses = 0;
+
+	public ScoreCacheFile(File file, String stamp) throws IOException {
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+
+		end = file.length() > 0 && file.length() <= MAX_SIZE ? scan(file, stamp) : 0;
+		if (end == 0) {
+			if (file.length() > 0)
+				System.out.println("Score cache " + file + " was computed on another index, cleared");
+			channel.truncate(0);
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(header);
+			out.writeInt(MAGIC);
+			out.writeUTF(stamp);
+			out.flush();
+			end = append(header.toByteArray());
+		} else {
+			if (end < channel.size())
+				channel.truncate(end);
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+		}
+	}
+
+	/**
+	 * Indexes the records of the file.
+	 *
+	 * @return end of the last complete record, 0 if the file is not a cache
+	 *         of the stamped index
+	 */
+	private long scan(File file, String stamp) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || !in.readUTF().equals(stamp))
+				return 0;
+			long position = 4 + 2 + stamp.getBytes(UTF8).length;
+			while (true) {
+				try {
+					int keyLength = in.readInt();
+					if (keyLength < 0)
+						return position;
+					byte[] key = new byte[keyLength];
+					in.readFully(key);
+					byte type = in.readByte();
+					long valuePosition = position + 4 + keyLength + 1;
+					long valueBytes;
+					if (type == HITS) {
+						// n searched for, hits
+						in.readInt();
+						int size = in.readInt();
+						skipFully(in, 8L * size);
+						valueBytes = 8 + 8L * size;
+					} else if (type == COUNTS) {
+						int size = in.readInt();
+						skipFully(in, 4L * size);
+						valueBytes = 4 + 4L * size;
+					} else
+						return position;
+					// skipping does not stop at the end of the file
+					if (valuePosition + valueBytes > file.length())
+						return position;
+					position = valuePosition + valueBytes;
+					mappedValues.put(new String(key, UTF8), (int) valuePosition);
+				} catch (EOFException e) {
+					// torn last record
+					return position;
+				}
+			}
+		} catch (EOFException e) {
+			return 0;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void skipFully(DataInputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0)
+				throw new EOFException();
+			bytes -= skipped;
+		}
+	}
+
+	/**
+	 * Stamp of the commits an index reader (or the shards of a multi reader)
+	 * is opened on: version, generation and time of the segments file.
+	 */
+	public static String stamp(IndexReader reader) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		if (reader instanceof DirectoryReader) {
+			DirectoryReader directoryReader = (DirectoryReader) reader;
+			IndexCommit commit = directoryReader.getIndexCommit();
+			sb.append(directoryReader.getVersion()).append('/').append(commit.getGeneration()).append('/')
+					.append(reader.maxDoc());
+			if (commit.getDirectory() instanceof FSDirectory) {
+				File folder = ((FSDirectory) commit.getDirectory()).getDirectory();
+				sb.append('/').append(new File(folder, commit.getSegmentsFileName()).lastModified());
+			}
+		} else if (reader instanceof CompositeReader) {
+			sb.append('[');
+			for (IndexReaderContext sub : reader.getContext().children())
+				sb.append(stamp(sub.reader())).append(';');
+			sb.append(']');
+		} else
+			sb.append(reader.getClass().getSimpleName()).append('/').append(reader.maxDoc());
+		return sb.toString();
+	}
+
+	/**
+	 * @return top n hits cached for the query key, or null
+	 */
+	public synchronized ScoreDoc[] getHits(String key, int n) {
+		Object value = added.get(key);
+		Integer position = mappedValues.get(key);
+		ScoreDoc[] top = null;
+		if (value != null)
+			top = ((CachedHits) value).top(n);
+		else if (position != null) {
+			ByteBuffer buffer = mapped.duplicate();
+			buffer.position(position);
+			int searched = buffer.getInt();
+			int size = buffer.getInt();
+			if (size < searched || size >= n) {
+				top = new ScoreDoc[Math.min(n, size)];
+				int scores = buffer.position() + 4 * size;
+				for (int i = 0; i < top.length; i++)
+					top[i] = new ScoreDoc(buffer.getInt(), buffer.getFloat(scores + 4 * i));
+			}
+		}
+		if (top != null)
+			hits++;
+		else
+			misses++;
+		return top;
+	}
+
+	public synchronized boolean containsHits(String key, int n) {
+		Object value = added.get(key);
+		if (value != null)
+			return ((CachedHits) value).top(n) != null;
+		Integer position = mappedValues.get(key);
+		if (position == null)
+			return false;
+		int searched = mapped.getInt(position);
+		int size = mapped.getInt(position + 4);
+		return size < searched || size >= n;
+	}
+
+	public synchronized void putHits(String key, int n, ScoreDoc[] top) throws IOException {
+		if (containsHits(key, n))
+			return;
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = startRecord(record, key, HITS);
+		out.writeInt(n);
+		out.writeInt(top.length);
+		for (ScoreDoc hit : top)
+			out.writeInt(hit.doc);
+		for (ScoreDoc hit : top)
+			out.writeFloat(hit.score);
+		out.flush();
+		if (append(record.toByteArray()) > 0)
+			added.put(key, new CachedHits(n, top));
+	}
+
+	/**
+	 * @return per-hit counts cached for the key, or null
+	 */
+	public synchronized int[] getCounts(String key) {
+		int[] counts = (int[]) added.get(key);
+		Integer position = mappedValues.get(key);
+		if (counts == null && position != null) {
+			ByteBuffer buffer = mapped.duplicate();
+			buffer.position(position);
+			counts = new int[buffer.getInt()];
+			buffer.asIntBuffer().get(counts);
+		}
+		if (counts != null)
+			hits++;
+		else
+			misses++;
+		return counts;
+	}
+
+	public synchronized void putCounts(String key, int[] counts) throws IOException {
+		if (added.containsKey(key) || mappedValues.containsKey(key))
+			return;
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = startRecord(record, key, COUNTS);
+		out.writeInt(counts.length);
+		for (int count : counts)
+			out.writeInt(count);
+		out.flush();
+		if (append(record.toByteArray()) > 0)
+			added.put(key, counts.clone());
+	}
+
+	private static DataOutputStream startRecord(ByteArrayOutputStream record, String key, byte type)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(record);
+		byte[] keyBytes = key.getBytes(UTF8);
+		out.writeInt(keyBytes.length);
+		out.write(keyBytes);
+		out.writeByte(type);
+		return out;
+	}
+
+	/**
+	 * @return the new end of the file, 0 if full
+	 */
+	private long append(byte[] bytes) throws IOException {
+		if (end + bytes.length > MAX_SIZE)
+			return 0;
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining())
+			channel.write(buffer, end + buffer.position());
+		end += bytes.length;
+		return end;
+	}
+
+	public synchronized String report() {
+		return String.format("Score cache: %d hits, %d misses, %d records, %.1f MB", hits, misses,
+				mappedValues.size() + added.size(), end / 1e6);
+	}
+
+	public synchronized void close() throws IOException {
+		mapped = null;
+		channel.close();
+		raf.close();
+	}
+
+	private static class CachedHits {
+
+		final int searched;
+		final ScoreDoc[] top;
+
+		CachedHits(int searched, ScoreDoc[] top) {
+			this.searched = searched;
+			this.top = new ScoreDoc[top.length];
+			for (int i = 0; i < top.length; i++)
+				this.top[i] = new ScoreDoc(top[i].doc, top[i].score);
+		}
+
+		ScoreDoc[] top(int n) {
+			// fewer hits than searched for are all the hits
+			if (top.length < searched || top.length >= n) {
+				ScoreDoc[] copy = new ScoreDoc[Math.min(n, top.length)];
+				for (int i = 0; i < copy.length; i++)
+					copy[i] = new ScoreDoc(top[i].doc, top[i].score);
+				return copy;
+			}
+			return null;
+		}
+
+	}
+
+}
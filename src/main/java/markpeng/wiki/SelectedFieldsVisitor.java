@@ -0,0 +1,60 @@
+package markpeng.wiki;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+/**
+ * Loads only the given single valued stored fields of a document and stops
+ * reading it as soon as all of them are found, so the stored fields after
+ * them (the raw markup of an article) are never turned into Strings.
+ */
+public class SelectedFieldsVisitor extends StoredFieldVisitor {
+
+	private final Set<String> fields;
+	private final Document document = new Document();
+	private int remaining;
+
+	public SelectedFieldsVisitor(String... fields) {
+		this.fields = new HashSet<String>(Arrays.asList(fields));
+		this.remaining = this.fields.size();
+	}
+
+	@Override
+	public Status needsField(FieldInfo fieldInfo) throws IOException {
+		if (remaining == 0)
+			return Status.STOP;
+		return fields.contains(fieldInfo.name) ? Status.YES : Status.NO;
+	}
+
+	@Override
+	public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+		add(new StoredField(fieldInfo.name, value));
+	}
+
+	@Override
+	public void intField(FieldInfo fieldInfo, int value) throws IOException {
+		add(new StoredField(fieldInfo.name, value));
+	}
+
+	@Override
+	public void longField(FieldInfo fieldInfo, long value) throws IOException {
+		add(new StoredField(fieldInfo.name, value));
+	}
+
+	private void add(StoredField field) {
+		document.add(field);
+		remaining--;
+	}
+
+	public Document getDocument() {
+		return document;
+	}
+
+}
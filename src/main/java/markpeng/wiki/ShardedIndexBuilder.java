@@ -0,0 +1,273 @@
+package markpeng.wiki;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Builds the index as N shards in parallel, each with its own
+ * {@link IndexWriter} over a contiguous range of multistream dump streams.
+ * A shard decodes its streams on several threads but indexes their pages on
+ * its own thread in dump order, numbering its articles from the count of
+ * pages listed in the index before its range. Ids are therefore globally
+ * unique and increase in dump order, and every shard adds its documents in
+ * dump order, as a single writer over the whole dump would. The shards can be
+ * merged, in shard order, into the index folder afterwards or left as
+ * <code>shard-N</code> sub folders, which {@link #openReader(File)} opens
+ * through a {@link MultiReader}.
+ */
+public class ShardedIndexBuilder {
+
+	public static final String SHARD_PREFIX = "shard-";
+
+	private final MultistreamDumpReader dumpReader;
+	private final KeywordMatcher keywordMatcher;
+	private final File indexFolder;
+
+	private int decodeThreads = 1;
+	private boolean keywordStats = false;
+	private long checkpointMillis = 0;
+	private boolean resume = false;
+	private BulkLoadProfile profile = null;
+	private boolean stripMarkup = false;
+	private boolean keepRawText = false;
+	private PageFilter pageFilter = null;
+	private IndexingStats stats = new IndexingStats();
+	private boolean verbose = false;
+	private PassageSplitter passageSplitter = null;
+
+	public ShardedIndexBuilder(MultistreamDumpReader dumpReader, KeywordMatcher keywordMatcher, File indexFolder) {
+		this.dumpReader = dumpReader;
+		this.keywordMatcher = keywordMatcher;
+		this.indexFolder = indexFolder;
+	}
+
+	public void setDecodeThreads(int decodeThreads) {
+		this.decodeThreads = decodeThreads;
+	}
+
+	public void setKeywordStats(boolean keywordStats) {
+		this.keywordStats = keywordStats;
+	}
+
+	/**
+	 * Every shard commits its own checkpoints, and with resume continues from
+	 * its own last checkpoint.
+	 */
+	public void setCheckpointing(long checkpointMillis, boolean resume) {
+		this.checkpointMillis = checkpointMillis;
+		this.resume = resume;
+	}
+
+	public void setStripMarkup(boolean stripMarkup, boolean keepRawText) {
+		this.stripMarkup = stripMarkup;
+		this.keepRawText = keepRawText;
+	}
+
+	/**
+	 * Shared by all shards, so its counters cover the whole build.
+	 */
+	public void setPageFilter(PageFilter pageFilter) {
+		this.pageFilter = pageFilter;
+	}
+
+	/**
+	 * Shared by all shards; verbose prints every article.
+	 */
+	public void setStats(IndexingStats stats, boolean verbose) {
+		this.stats = stats;
+		this.verbose = verbose;
+	}
+
+	public void setPassageSplitter(PassageSplitter passageSplitter) {
+		this.passageSplitter = passageSplitter;
+	}
+
+	/**
+	 * Applied to every shard writer and to the merging writer.
+	 */
+	public void setProfile(BulkLoadProfile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Indexes every shard on its own thread and waits for all of them.
+	 *
+	 * @param mergeLater
+	 *            skips the profile's final forceMerge on the shards, since it
+	 *            runs on the merged index instead
+	 */
+	public List<File> build(int shards, final boolean mergeLater) throws IOException {
+		long[] streams = dumpReader.getStreamOffsets();
+		shards = Math.max(1, Math.min(shards, streams.length));
+
+		List<File> shardFolders = new ArrayList<File>();
+		List<Thread> threads = new ArrayList<Thread>();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		int idBase = 0;
+		for (int k = 0; k < shards; k++) {
+			final long[] range = Arrays.copyOfRange(streams, (int) ((long) streams.length * k / shards),
+					(int) ((long) streams.length * (k + 1) / shards));
+			final File shardFolder = new File(indexFolder, SHARD_PREFIX + k);
+			final int firstId = idBase;
+			idBase += dumpReader.countPages(range);
+			shardFolders.add(shardFolder);
+
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						buildShard(shardFolder, firstId, range, !mergeLater);
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			}, SHARD_PREFIX + k);
+			thread.start();
+			threads.add(thread);
+		}
+
+		try {
+			for (Thread thread : threads)
+				thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while building shards", e);
+		}
+
+		Exception e = failure.get();
+		if (e instanceof IOException)
+			throw (IOException) e;
+		if (e != null)
+			throw new IOException(e);
+
+		return shardFolders;
+	}
+
+	private void buildShard(File shardFolder, int firstId, long[] range, boolean finish) throws Exception {
+		// no worker threads, which would add the documents out of order
+		WikipediaToLuceneIndex handler = new WikipediaToLuceneIndex(shardFolder.getPath(), keywordMatcher, firstId, 0,
+				0, profile, stats);
+		if (keywordStats)
+			handler.enableKeywordStats();
+		handler.setStripMarkup(stripMarkup, keepRawText);
+		handler.setPageFilter(pageFilter);
+		handler.setVerbose(verbose);
+		handler.setPassageSplitter(passageSplitter);
+		boolean completed = false;
+		try {
+			handler.indexStreams(dumpReader, range, decodeThreads, checkpointMillis, resume, true);
+			if (finish && profile != null)
+				profile.finish(handler.indexWriter);
+			completed = true;
+		} finally {
+			if (completed || (checkpointMillis == 0 && !resume))
+				handler.close();
+			else
+				handler.abort();
+			if (keywordStats) {
+				System.out.println(shardFolder.getName() + ":");
+				handler.printKeywordStats();
+			}
+		}
+	}
+
+	/**
+	 * Merges the shards, in shard order, into a single index in the index
+	 * folder and removes the shard folders.
+	 */
+	public void merge(List<File> shardFolders) throws IOException {
+		IndexWriterConfig config = new IndexWriterConfig(Version.LATEST, WikipediaToLuceneIndex.createAnalyzer());
+		config.setOpenMode(OpenMode.CREATE);
+		Directory indexDir = FSDirectory.open(indexFolder);
+		if (profile != null) {
+			indexDir = profile.wrap(indexDir);
+			profile.apply(config);
+		}
+		IndexWriter writer = new IndexWriter(indexDir, config);
+		try {
+			Directory[] shards = new Directory[shardFolders.size()];
+			for (int k = 0; k < shards.length; k++)
+				shards[k] = FSDirectory.open(shardFolders.get(k));
+			writer.addIndexes(shards);
+			if (profile != null)
+				profile.finish(writer);
+			writer.commit();
+			for (Directory shard : shards)
+				shard.close();
+		} finally {
+			writer.close();
+		}
+
+		for (File shardFolder : shardFolders)
+			deleteFolder(shardFolder);
+	}
+
+	private static void deleteFolder(File folder) {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File f : files)
+				f.delete();
+		}
+		folder.delete();
+	}
+
+	/**
+	 * @return the <code>shard-N</code> sub folders of the index folder, in
+	 *         shard order
+	 */
+	public static List<File> listShards(File indexFolder) {
+		File[] folders = indexFolder.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isDirectory() && f.getName().startsWith(SHARD_PREFIX);
+			}
+		});
+		if (folders == null)
+			return Collections.emptyList();
+
+		Arrays.sort(folders, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Integer.compare(shardNumber(a), shardNumber(b));
+			}
+		});
+		return Arrays.asList(folders);
+	}
+
+	private static int shardNumber(File folder) {
+		return Integer.parseInt(folder.getName().substring(SHARD_PREFIX.length()));
+	}
+
+	/**
+	 * Opens the index folder, or all of its shards through one
+	 * {@link MultiReader} when it was built with unmerged shards.
+	 */
+	public static IndexReader openReader(File indexFolder) throws IOException {
+		List<File> shardFolders = listShards(indexFolder);
+		if (shardFolders.isEmpty())
+			return DirectoryReader.open(FSDirectory.open(indexFolder));
+
+		IndexReader[] shards = new IndexReader[shardFolders.size()];
+		for (int k = 0; k < shards.length; k++)
+			shards[k] = DirectoryReader.open(FSDirectory.open(shardFolders.get(k)));
+		return new MultiReader(shards);
+	}
+
+}
@@ -0,0 +1,166 @@
+package markpeng.wiki;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+
+/**
+ * The strategies QuestionToWiki has been answering with.
+ */
+public enum StandardStrategy implements AnswerStrategy {
+
+	// sum of the scores of the top hits in title or text
+	TOP_N("topN", null) {
+		@Override
+		public Query[] createQueries(Question question, boolean fallback) {
+			return question.answerQueries(Occur.SHOULD, "title", "text");
+		}
+	},
+
+	// the same with the field length as norm instead of its square root
+	NO_LENGTH_NORM("noLengthNorm", new InverseLengthNormSimilarity()) {
+		@Override
+		public Query[] createQueries(Question question, boolean fallback) {
+			return question.answerQueries(Occur.SHOULD, "title", "text");
+		}
+	},
+
+	// sum of the scores of the top hits matching every term, or any term if
+	// no answer has such hits
+	AND("and", null) {
+		@Override
+		public Query[] createQueries(Question question, boolean fallback) {
+			return question.answerQueries(fallback ? Occur.SHOULD : Occur.MUST, "text");
+		}
+
+		@Override
+		public boolean needsFallback(double[] scores) {
+			return noAnswer(scores);
+		}
+	},
+
+	// the same, but the fallback counts the answer terms in the top hits
+	AND_COUNT("andCount", null) {
+		@Override
+		public Query[] createQueries(Question question, boolean fallback) {
+			return question.answerQueries(fallback ? Occur.SHOULD : Occur.MUST, "text");
+		}
+
+		@Override
+		public boolean needsFallback(double[] scores) {
+			return noAnswer(scores);
+		}
+
+		@Override
+		public double score(AnswerHits hits, boolean fallback) throws IOException {
+			return fallback ? sumCounts(hits) : sumScores(hits);
+		}
+	},
+
+	// number of answer terms in the top hits matching any term
+	OR_COUNT("orCount", null) {
+		@Override
+		public Query[] createQueries(Question question, boolean fallback) {
+			return question.answerQueries(Occur.SHOULD, "text");
+		}
+
+		@Override
+		public double score(AnswerHits hits, boolean fallback) throws IOException {
+			return sumCounts(hits);
+		}
+	};
+
+	private final String name;
+	private final Similarity similarity;
+
+	private StandardStrategy(String name, Similarity similarity) {
+		this.name = name;
+		this.similarity = similarity;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public Similarity getSimilarity() {
+		return similarity;
+	}
+
+	@Override
+	public boolean needsFallback(double[] scores) {
+		return false;
+	}
+
+	@Override
+	public double score(AnswerHits hits, boolean fallback) throws IOException {
+		return sumScores(hits);
+	}
+
+	private static boolean noAnswer(double[] scores) {
+		for (double score : scores) {
+			if (score > 0.0)
+				return false;
+		}
+		return true;
+	}
+
+	private static double sumScores(AnswerHits hits) {
+		double sum = 0.0;
+		for (ScoreDoc hit : hits.getHits())
+			sum += hit.score;
+		return sum;
+	}
+
+	private static double sumCounts(AnswerHits hits) throws IOException {
+		double sum = 0.0;
+		for (int count : hits.getAnswerTermCounts())
+			sum += count;
+		return sum;
+	}
+
+	public static StandardStrategy forName(String name) {
+		for (StandardStrategy strategy : values()) {
+			if (strategy.name.equalsIgnoreCase(name))
+				return strategy;
+		}
+		throw new IllegalArgumentException("Unknown strategy: " + name);
+	}
+
+	/**
+	 * @param names
+	 *            comma separated strategy names, or all
+	 */
+	public static AnswerStrategy[] forNames(String names) {
+		if ("all".equals(names))
+			return values();
+		List<AnswerStrategy> strategies = new ArrayList<AnswerStrategy>();
+		for (String name : names.split(","))
+			strategies.add(forName(name.trim()));
+		return strategies.toArray(new AnswerStrategy[0]);
+	}
+
+	/**
+	 * Normalizes by the field length instead of its square root. A named
+	 * class, as its name is part of the keys of the score cache.
+	 */
+	private static class InverseLengthNormSimilarity extends DefaultSimilarity {
+
+		public float lengthNorm(FieldInvertState state) {
+			return (float) (1.0 / state.getLength());
+		}
+
+		// public float tf(float freq) {
+		// return (float) freq;
+		// }
+	}
+
+}
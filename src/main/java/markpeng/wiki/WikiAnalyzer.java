@@ -0,0 +1,53 @@
+package markpeng.wiki;
+
+import java.io.Reader;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.LowerCaseFilter;
+import org.apache.lucene.analysis.core.StopFilter;
+import org.apache.lucene.analysis.miscellaneous.WordDelimiterFilter;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+
+/**
+ * The analysis chain of both the index and the questions: StandardTokenizer,
+ * English stop words, word delimiter splitting on case changes and numerics,
+ * lower casing and Porter stemming through a {@link CachingPorterStemFilter}.
+ * The components are reused per thread, so one instance serves every field
+ * and every thread.
+ */
+public class WikiAnalyzer extends Analyzer {
+
+	public static final int WORD_DELIMITER_FLAGS = WordDelimiterFilter.SPLIT_ON_NUMERICS
+			| WordDelimiterFilter.SPLIT_ON_CASE_CHANGE | WordDelimiterFilter.GENERATE_NUMBER_PARTS
+			| WordDelimiterFilter.GENERATE_WORD_PARTS;
+
+	private final IndexingStats stats;
+
+	public WikiAnalyzer() {
+		this(null);
+	}
+
+	/**
+	 * @param stats
+	 *            times the analysis of indexed fields, or null
+	 */
+	public WikiAnalyzer(IndexingStats stats) {
+		this.stats = stats;
+	}
+
+	@Override
+	protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
+		StandardTokenizer tokenizer = new StandardTokenizer(reader);
+		TokenStream ts = new StopFilter(tokenizer, StandardAnalyzer.STOP_WORDS_SET);
+		ts = new WordDelimiterFilter(ts, WORD_DELIMITER_FLAGS, null);
+		ts = new LowerCaseFilter(ts);
+		ts = new CachingPorterStemFilter(ts);
+		if (stats != null)
+			ts = stats.timeAnalysis(ts);
+
+		return new TokenStreamComponents(tokenizer, ts);
+	}
+
+}
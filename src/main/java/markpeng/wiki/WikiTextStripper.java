@@ -0,0 +1,380 @@
+package markpeng.wiki;
+
+/**
+ * Turns MediaWiki markup into plain prose in a single forward pass over the
+ * text, without regular expressions. Templates, tables, comments, references
+ * and file/category links are dropped; internal and external links are
+ * replaced by their label; bold/italic quotes, heading and list markers and
+ * HTML tags are removed. Headings can be kept as "== heading ==" lines for
+ * the {@link PassageSplitter}. The output buffer is reused between calls, so
+ * an instance must not be shared between threads.
+ */
+public class WikiTextStripper {
+
+	// tags whose content is dropped together with the tag
+	private static final String[] DROPPED_TAGS = { "ref", "math", "gallery", "timeline", "imagemap", "score" };
+	private static final String[] DROPPED_LINK_PREFIXES = { "file:", "image:", "category:", "media:" };
+	private static final String[] ENTITIES = { "&nbsp;", "&ndash;", "&mdash;", "&minus;", "&amp;", "&lt;", "&gt;",
+			"&quot;", "&thinsp;", "&ensp;", "&emsp;" };
+	private static final char[] ENTITY_CHARS = { ' ', '-', '-', '-', '&', '<', '>', '"', ' ', ' ', ' ' };
+
+	private final StringBuilder out = new StringBuilder(64 * 1024);
+	private final boolean keepHeadings;
+	// inside a kept heading line
+	private boolean heading = false;
+
+	public WikiTextStripper() {
+		this(false);
+	}
+
+	/**
+	 * @param keepHeadings
+	 *            whether headings keep their "=" markers, trimmed to
+	 *            "== heading =="
+	 */
+	public WikiTextStripper(boolean keepHeadings) {
+		this.keepHeadings = keepHeadings;
+	}
+
+	public String strip(String text) {
+		out.setLength(0);
+		heading = false;
+		strip(text, 0, text.length(), true);
+
+		// drop trailing blank lines
+		int end = out.length();
+		while (end > 0 && Character.isWhitespace(out.charAt(end - 1)))
+			end--;
+		out.setLength(end);
+		return out.toString();
+	}
+
+	/**
+	 * @param startsLine
+	 *            whether start is at the start of a line, false for a link label
+	 */
+	private void strip(String text, int start, int end, boolean startsLine) {
+		int i = start;
+		while (i < end) {
+			char c = text.charAt(i);
+			boolean lineStart = i == start ? startsLine : text.charAt(i - 1) == '\n';
+
+			if (lineStart) {
+				if (keepHeadings && c == '=') {
+					i = appendHeadingStart(text, i, end);
+					continue;
+				}
+				int next = skipLinePrefix(text, i, end);
+				if (next != i) {
+					i = next;
+					continue;
+				}
+				if (text.startsWith("{|", i)) {
+					i = skipTable(text, i, end);
+					continue;
+				}
+			}
+
+			switch (c) {
+			case '{':
+				if (i + 1 < end && text.charAt(i + 1) == '{') {
+					i = skipBalanced(text, i, end, '{', '}');
+					continue;
+				}
+				break;
+			case '[':
+				if (i + 1 < end && text.charAt(i + 1) == '[') {
+					i = appendInternalLink(text, i, end);
+					continue;
+				}
+				if (isExternalLink(text, i + 1, end)) {
+					i = appendExternalLink(text, i, end);
+					continue;
+				}
+				break;
+			case '<':
+				int tagEnd = skipTag(text, i, end);
+				if (tagEnd != i) {
+					i = tagEnd;
+					continue;
+				}
+				break;
+			case '\'':
+				if (i + 1 < end && text.charAt(i + 1) == '\'') {
+					while (i < end && text.charAt(i) == '\'')
+						i++;
+					continue;
+				}
+				break;
+			case '=':
+				// closing "==" of a heading, with the spaces around it
+				int eq = i;
+				while (eq < end && text.charAt(eq) == '=')
+					eq++;
+				if (eq - i >= 2 && restOfLineBlank(text, eq, end)) {
+					trimTrailingSpaces();
+					if (heading)
+						out.append(' ').append(text, i, eq);
+					while (eq < end && (text.charAt(eq) == ' ' || text.charAt(eq) == '\t'))
+						eq++;
+					i = eq;
+					continue;
+				}
+				break;
+			case '_':
+				int magicEnd = skipMagicWord(text, i, end);
+				if (magicEnd != i) {
+					i = magicEnd;
+					continue;
+				}
+				break;
+			case '&':
+				int entityEnd = appendEntity(text, i, end);
+				if (entityEnd != i) {
+					i = entityEnd;
+					continue;
+				}
+				break;
+			case '\n':
+				heading = false;
+				// at most one blank line in a row
+				int len = out.length();
+				if (len == 0 || (len >= 2 && out.charAt(len - 1) == '\n' && out.charAt(len - 2) == '\n')) {
+					i++;
+					continue;
+				}
+				break;
+			default:
+				break;
+			}
+
+			out.append(c);
+			i++;
+		}
+	}
+
+	/**
+	 * Skips heading ("== "), list ("*", "#", ":", ";"), indentation and rule
+	 * ("----") markers at the start of a line.
+	 */
+	private static int skipLinePrefix(String text, int i, int end) {
+		int j = i;
+		if (text.startsWith("----", j)) {
+			while (j < end && text.charAt(j) == '-')
+				j++;
+			return j;
+		}
+		while (j < end) {
+			char c = text.charAt(j);
+			if (c == '=' || c == '*' || c == '#' || c == ':' || c == ';')
+				j++;
+			else if (c == ' ' && j > i)
+				j++;
+			else
+				break;
+		}
+		return j;
+	}
+
+	/**
+	 * Appends the opening "=" markers of a heading and a single space.
+	 */
+	private int appendHeadingStart(String text, int i, int end) {
+		int j = i;
+		while (j < end && text.charAt(j) == '=')
+			j++;
+		out.append(text, i, j).append(' ');
+		while (j < end && (text.charAt(j) == ' ' || text.charAt(j) == '\t'))
+			j++;
+		heading = true;
+		return j;
+	}
+
+	private void trimTrailingSpaces() {
+		int end = out.length();
+		while (end > 0 && (out.charAt(end - 1) == ' ' || out.charAt(end - 1) == '\t'))
+			end--;
+		out.setLength(end);
+	}
+
+	private static boolean restOfLineBlank(String text, int i, int end) {
+		while (i < end) {
+			char c = text.charAt(i);
+			if (c == '\n')
+				return true;
+			if (c != ' ' && c != '\t')
+				return false;
+			i++;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the index after the run starting at i with its nested pairs of
+	 *         open/close characters balanced, e.g. {{a|{{b}}}}
+	 */
+	private static int skipBalanced(String text, int i, int end, char open, char close) {
+		int depth = 0;
+		while (i < end) {
+			char c = text.charAt(i);
+			if (c == open && i + 1 < end && text.charAt(i + 1) == open) {
+				depth++;
+				i += 2;
+			} else if (c == close && i + 1 < end && text.charAt(i + 1) == close) {
+				depth--;
+				i += 2;
+				if (depth == 0)
+					return i;
+			} else
+				i++;
+		}
+		return end;
+	}
+
+	private static int skipTable(String text, int i, int end) {
+		int depth = 0;
+		while (i < end) {
+			if (text.startsWith("{|", i)) {
+				depth++;
+				i += 2;
+			} else if (text.startsWith("|}", i)) {
+				depth--;
+				i += 2;
+				if (depth == 0)
+					return i;
+			} else
+				i++;
+		}
+		return end;
+	}
+
+	private int appendInternalLink(String text, int i, int end) {
+		int close = skipBalanced(text, i, end, '[', ']');
+		int innerStart = i + 2;
+		int innerEnd = Math.max(innerStart, close - 2);
+
+		if (isDroppedLink(text, innerStart, innerEnd))
+			return close;
+
+		// label is after the last top level '|', otherwise the target
+		int labelStart = innerStart;
+		int depth = 0;
+		for (int j = innerStart; j < innerEnd; j++) {
+			char c = text.charAt(j);
+			if (c == '[' || c == '{')
+				depth++;
+			else if (c == ']' || c == '}')
+				depth--;
+			else if (c == '|' && depth == 0)
+				labelStart = j + 1;
+		}
+		if (labelStart == innerStart && innerStart < innerEnd && text.charAt(innerStart) == ':')
+			labelStart++;
+		strip(text, labelStart, innerEnd, false);
+		return close;
+	}
+
+	private static boolean isDroppedLink(String text, int start, int end) {
+		for (String prefix : DROPPED_LINK_PREFIXES) {
+			if (text.regionMatches(true, start, prefix, 0, prefix.length()))
+				return true;
+		}
+
+		// interlanguage links such as [[de:Apfel]]
+		int j = start;
+		while (j < end && j - start <= 3 && Character.isLowerCase(text.charAt(j)))
+			j++;
+		return j - start >= 2 && j < end && text.charAt(j) == ':';
+	}
+
+	private static boolean isExternalLink(String text, int i, int end) {
+		return text.startsWith("http://", i) || text.startsWith("https://", i) || text.startsWith("ftp://", i)
+				|| text.startsWith("//", i);
+	}
+
+	private int appendExternalLink(String text, int i, int end) {
+		int close = text.indexOf(']', i);
+		int lineEnd = text.indexOf('\n', i);
+		if (close < 0 || close > end || (lineEnd >= 0 && lineEnd < close)) {
+			// not a bracketed link after all, keep the bracket
+			out.append('[');
+			return i + 1;
+		}
+
+		int space = i;
+		while (space < close && text.charAt(space) != ' ')
+			space++;
+		if (space < close)
+			strip(text, space + 1, close, false);
+		return close + 1;
+	}
+
+	/**
+	 * Skips a comment, a dropped element with its content or a single HTML
+	 * tag starting at i.
+	 *
+	 * @return i if there is no tag at i
+	 */
+	private static int skipTag(String text, int i, int end) {
+		if (text.startsWith("<!--", i)) {
+			int close = text.indexOf("-->", i + 4);
+			return close < 0 || close + 3 > end ? end : close + 3;
+		}
+
+		int nameStart = i + 1;
+		if (nameStart < end && text.charAt(nameStart) == '/')
+			nameStart++;
+		if (nameStart >= end || !Character.isLetter(text.charAt(nameStart)))
+			return i;
+
+		int close = text.indexOf('>', nameStart);
+		// not a tag if it does not close on a reasonable distance
+		if (close < 0 || close >= end || close - i > 1000)
+			return i;
+
+		if (nameStart == i + 1 && text.charAt(close - 1) != '/') {
+			for (String tag : DROPPED_TAGS) {
+				if (text.regionMatches(true, nameStart, tag, 0, tag.length()) && nameStart + tag.length() < end) {
+					char after = text.charAt(nameStart + tag.length());
+					if (after == '>' || after == ' ' || after == '\t' || after == '\n')
+						return skipToClosingTag(text, close + 1, end, tag);
+				}
+			}
+		}
+		return close + 1;
+	}
+
+	private static int skipToClosingTag(String text, int i, int end, String tag) {
+		for (int j = text.indexOf("</", i); j >= 0 && j < end; j = text.indexOf("</", j + 2)) {
+			if (text.regionMatches(true, j + 2, tag, 0, tag.length())) {
+				int close = text.indexOf('>', j);
+				return close < 0 || close >= end ? end : close + 1;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Skips behaviour switches such as __TOC__ or __NOTOC__.
+	 */
+	private static int skipMagicWord(String text, int i, int end) {
+		if (!text.startsWith("__", i))
+			return i;
+		int j = i + 2;
+		while (j < end && Character.isUpperCase(text.charAt(j)))
+			j++;
+		return j > i + 2 && text.startsWith("__", j) ? j + 2 : i;
+	}
+
+	private int appendEntity(String text, int i, int end) {
+		for (int k = 0; k < ENTITIES.length; k++) {
+			String entity = ENTITIES[k];
+			if (i + entity.length() <= end && text.startsWith(entity, i)) {
+				out.append(ENTITY_CHARS[k]);
+				return i + entity.length();
+			}
+		}
+		return i;
+	}
+
+}
@@ -6,62 +6,179 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.core.LowerCaseFilter;
-import org.apache.lucene.analysis.core.StopFilter;
-import org.apache.lucene.analysis.en.PorterStemFilter;
-import org.apache.lucene.analysis.miscellaneous.WordDelimiterFilter;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
-import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.xml.sax.SAXException;
 
 import info.bliki.wiki.dump.IArticleFilter;
 import info.bliki.wiki.dump.Siteinfo;
 import info.bliki.wiki.dump.WikiArticle;
-import info.bliki.wiki.dump.WikiXMLParser;
 
 public class WikipediaToLuceneIndex implements IArticleFilter {
 
-	private int currentId = 0;
+	// marks the end of input for the pipeline workers
+	private static final WikiArticle END_OF_INPUT = new WikiArticle();
+
+	private final AtomicInteger currentId;
 	public IndexWriter indexWriter = null;
 
-	private List<String> keywords = new ArrayList<String>();
+	private KeywordMatcher keywordMatcher = null;
+	// keyword -> total occurrences in indexed articles, only when enabled
+	private ConcurrentMap<String, AtomicLong> keywordStats = null;
+
+	// index markup-free prose, optionally keeping the raw markup stored
+	private boolean stripMarkup = false;
+	private boolean keepRawText = false;
+	private final ThreadLocal<WikiTextStripper> stripper = new ThreadLocal<WikiTextStripper>() {
+		@Override
+		protected WikiTextStripper initialValue() {
+			// passages are split at the headings
+			return new WikiTextStripper(passageSplitter != null);
+		}
+	};
+
+	private final IndexingStats stats;
+	// print every indexed and skipped article
+	private boolean verbose = false;
+	// when process() last returned on this parser thread, to time parsing
+	private final ThreadLocal<Long> lastProcessed = new ThreadLocal<Long>();
+
+	// drops pages by metadata before their text is scanned, or null
+	private PageFilter pageFilter = null;
+
+	// index each article as passage documents sharing its id, or null
+	private PassageSplitter passageSplitter = null;
+
+	// near-real-time searchers over the live writer, null until opened
+	private SearcherManager searcherManager = null;
+	private Thread refresher = null;
+	// not an interrupt, which would close the channels of a refresh in progress
+	private final CountDownLatch refresherStop = new CountDownLatch(1);
+
+	// pipeline mode: parser thread enqueues, worker threads filter and index
+	private BlockingQueue<WikiArticle> queue = null;
+	private List<Thread> workers = new ArrayList<Thread>();
+	// articles queued or being indexed, so checkpoints can wait for them
+	private final AtomicLong inFlight = new AtomicLong();
+	private final Object idleMonitor = new Object();
 
 	public WikipediaToLuceneIndex(String luceneFolderPath, String keywordsPath) throws IOException {
-		readKeywords(keywordsPath);
+		this(luceneFolderPath, keywordsPath, 0, 0);
+	}
 
-		Directory indexDir = FSDirectory.open(new File(luceneFolderPath));
-		Analyzer analyzer = new Analyzer() {
-			@Override
-			protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
-				StandardTokenizer tokenzier = new StandardTokenizer(reader);
-				TokenStream ts = new StopFilter(tokenzier, StandardAnalyzer.STOP_WORDS_SET);
-				int flags = WordDelimiterFilter.SPLIT_ON_NUMERICS | WordDelimiterFilter.SPLIT_ON_CASE_CHANGE
-						| WordDelimiterFilter.GENERATE_NUMBER_PARTS | WordDelimiterFilter.GENERATE_WORD_PARTS;
-				ts = new WordDelimiterFilter(ts, flags, null);
-				ts = new LowerCaseFilter(ts);
-				ts = new PorterStemFilter(ts);
-
-				return new TokenStreamComponents(tokenzier, ts);
-			}
-		};
+	/**
+	 * @param workerThreads
+	 *            number of indexing threads; 0 filters and indexes on the
+	 *            parser thread
+	 * @param queueCapacity
+	 *            max articles waiting for a worker before the parser blocks
+	 */
+	public WikipediaToLuceneIndex(String luceneFolderPath, String keywordsPath, int workerThreads, int queueCapacity)
+			throws IOException {
+		this(luceneFolderPath, new KeywordMatcher(readKeywords(keywordsPath)), 0, workerThreads, queueCapacity, null,
+				new IndexingStats());
+	}
 
-		IndexWriterConfig config = new IndexWriterConfig(Version.LATEST, analyzer);
+	/**
+	 * @param firstId
+	 *            id given to the first indexed article, so that shards built
+	 *            in parallel do not hand out the same ids
+	 * @param profile
+	 *            bulk load writer settings, or null for the IndexWriter
+	 *            defaults
+	 * @param stats
+	 *            counters and timings, may be shared between indexers
+	 */
+	public WikipediaToLuceneIndex(String luceneFolderPath, KeywordMatcher keywordMatcher, int firstId,
+			int workerThreads, int queueCapacity, BulkLoadProfile profile, IndexingStats stats) throws IOException {
+		this.keywordMatcher = keywordMatcher;
+		this.currentId = new AtomicInteger(firstId);
+		this.stats = stats;
+
+		Directory indexDir = FSDirectory.open(new File(luceneFolderPath));
+		IndexWriterConfig config = new IndexWriterConfig(Version.LATEST, createAnalyzer(stats));
+		if (profile != null) {
+			indexDir = profile.wrap(indexDir);
+			profile.apply(config);
+		}
 		indexWriter = new IndexWriter(indexDir, config);
+
+		if (workerThreads > 0)
+			startWorkers(workerThreads, queueCapacity);
+	}
+
+	public static Analyzer createAnalyzer() {
+		return createAnalyzer(null);
+	}
+
+	/**
+	 * @param stats
+	 *            times the analysis of indexed fields, or null
+	 */
+	public static Analyzer createAnalyzer(IndexingStats stats) {
+		return new WikiAnalyzer(stats);
+	}
+
+	private void startWorkers(int workerThreads, int queueCapacity) {
+		queue = new ArrayBlockingQueue<WikiArticle>(Math.max(queueCapacity, workerThreads));
+		stats.watchQueue(queue);
+		for (int i = 0; i < workerThreads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						WikiArticle page;
+						while ((page = queue.take()) != END_OF_INPUT) {
+							try {
+								filterAndIndex(page);
+							} catch (RuntimeException e) {
+								e.printStackTrace();
+							} finally {
+								if (inFlight.decrementAndGet() == 0) {
+									synchronized (idleMonitor) {
+										idleMonitor.notifyAll();
+									}
+								}
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "indexer-" + i);
+			worker.start();
+			workers.add(worker);
+		}
 	}
 
 	@Override
@@ -71,83 +188,602 @@ public class WikipediaToLuceneIndex implements IArticleFilter {
 		// System.out.println("----------------------------------------");
 		// System.out.println(page.getText());
 
+		// time since the previous page was handed over is parsing time
+		Long parseStart = lastProcessed.get();
+		if (parseStart != null)
+			stats.parsed(System.nanoTime() - parseStart);
+		stats.page(page.getText() != null ? page.getText().length() : 0);
+
 		try {
-			if (containKeyword(page.getText()))
-				index(page.getTitle(), page.getText());
-			else
-				System.out.println("Skip: " + page.getTitle());
+			// rejected pages are neither queued nor scanned
+			if (pageFilter != null && !pageFilter.accept(page)) {
+				stats.filtered();
+				return;
+			}
+
+			if (queue == null) {
+				filterAndIndex(page);
+				return;
+			}
+
+			// blocks while the workers are behind, so the parser cannot run away
+			inFlight.incrementAndGet();
+			try {
+				queue.put(page);
+			} catch (InterruptedException e) {
+				inFlight.decrementAndGet();
+				Thread.currentThread().interrupt();
+				throw new SAXException("Interrupted while queueing " + page.getTitle(), e);
+			}
+		} finally {
+			lastProcessed.set(System.nanoTime());
+		}
+	}
+
+	private void filterAndIndex(WikiArticle page) {
+		try {
+			long start = System.nanoTime();
+			boolean matched;
+			if (keywordStats != null) {
+				Map<String, Integer> counts = countKeywords(page.getText());
+				matched = !counts.isEmpty();
+				if (matched)
+					addKeywordStats(counts);
+			} else
+				matched = containKeyword(page.getText());
+			stats.filterTime(System.nanoTime() - start);
+
+			if (matched) {
+				if (stripMarkup) {
+					start = System.nanoTime();
+					String text = stripper.get().strip(page.getText());
+					stats.stripTime(System.nanoTime() - start);
+					index(page.getTitle(), text, keepRawText ? page.getText() : null);
+				} else
+					index(page.getTitle(), page.getText());
+			} else {
+				stats.skipped();
+				if (verbose)
+					System.out.println("Skip: " + page.getTitle());
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	private void addDoc(String title, String text) throws IOException {
+	private void addDoc(String title, String text, String rawText) throws IOException {
+		if (passageSplitter != null) {
+			addPassages(title, text, rawText);
+			return;
+		}
+
+		int id = currentId.getAndIncrement();
 		Document doc = new Document();
-		doc.add(new IntField("id", currentId, Field.Store.YES));
+		doc.add(new IntField("id", id, Field.Store.YES));
 		doc.add(new TextField("title", title, Field.Store.YES));
-		doc.add(new TextField("text", text, Field.Store.YES));
+		// hit titles are read without touching stored fields
+		doc.add(new BinaryDocValuesField("title", new BytesRef(title)));
+		// only indexed, hits are scored and counted from the postings
+		doc.add(new TextField("text", text, Field.Store.NO));
+		if (rawText != null)
+			doc.add(new StoredField("rawText", rawText));
+		long start = System.nanoTime();
 		indexWriter.addDocument(doc);
+		stats.added(System.nanoTime() - start);
+	}
 
-		currentId++;
+	/**
+	 * Adds the passages of an article as one block of documents that carry
+	 * the article id (also as doc values, to group hits without loading
+	 * stored fields), their ordinal and the title (also as doc values). The
+	 * passage text is only indexed, the first passage keeps the raw markup.
+	 */
+	private void addPassages(String title, String text, String rawText) throws IOException {
+		int id = currentId.getAndIncrement();
+		List<String> passages = passageSplitter.split(text);
+		List<Document> docs = new ArrayList<Document>(passages.size());
+		for (int i = 0; i < passages.size(); i++) {
+			Document doc = new Document();
+			doc.add(new IntField("id", id, Field.Store.YES));
+			doc.add(new NumericDocValuesField("id", id));
+			doc.add(new IntField("passage", i, Field.Store.YES));
+			doc.add(new TextField("title", title, Field.Store.YES));
+			doc.add(new BinaryDocValuesField("title", new BytesRef(title)));
+			doc.add(new TextField("text", passages.get(i), Field.Store.NO));
+			if (i == 0 && rawText != null)
+				doc.add(new StoredField("rawText", rawText));
+			docs.add(doc);
+		}
+		long start = System.nanoTime();
+		indexWriter.addDocuments(docs);
+		stats.added(System.nanoTime() - start);
 	}
 
 	public void index(String title, String text) throws IOException {
-		System.out.println("----------------------------------------");
-		System.out.println("Indexing " + title + " (text size: " + text.length() + ") ......");
-		addDoc(title, text);
-		System.out.println("Current size:" + currentId);
+		index(title, text, null);
+	}
+
+	/**
+	 * @param rawText
+	 *            original markup, stored (not indexed) next to the stripped
+	 *            text, or null
+	 */
+	public void index(String title, String text, String rawText) throws IOException {
+		if (verbose) {
+			System.out.println("----------------------------------------");
+			System.out.println("Indexing " + title + " (text size: " + text.length() + ") ......");
+		}
+		addDoc(title, text, rawText);
+		if (verbose)
+			System.out.println("Current size:" + currentId.get());
+	}
+
+	private void awaitIdle() throws IOException {
+		synchronized (idleMonitor) {
+			try {
+				while (inFlight.get() > 0)
+					idleMonitor.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for indexing workers", e);
+			}
+		}
+	}
+
+	/**
+	 * Waits until every article handed to {@link #process} is indexed, then
+	 * commits the writer with the checkpoint as commit user data. The caller
+	 * must not hand over new articles until this returns.
+	 */
+	public void checkpoint(Checkpoint checkpoint) throws IOException {
+		long start = System.nanoTime();
+		awaitIdle();
+		checkpoint.setCurrentId(currentId.get());
+		indexWriter.setCommitData(checkpoint.toCommitData());
+		indexWriter.commit();
+		stats.committed(System.nanoTime() - start);
+		// not parsing time for the thread that checkpoints
+		lastProcessed.set(System.nanoTime());
+		System.out.println("Checkpoint: " + checkpoint);
+	}
+
+	/**
+	 * @return the checkpoint of the last commit, or null if the index has
+	 *         none
+	 */
+	public Checkpoint getLastCheckpoint() {
+		return Checkpoint.fromCommitData(indexWriter.getCommitData());
+	}
+
+	/**
+	 * Continues numbering articles after those already committed.
+	 */
+	public void resumeFrom(Checkpoint checkpoint) {
+		currentId.set(checkpoint.getCurrentId());
+	}
+
+	/**
+	 * Indexes the given multistream streams, committing a checkpoint with the
+	 * next stream offset every interval and at the end. With resume, streams
+	 * before the offset of the last committed checkpoint are skipped.
+	 *
+	 * @param inDumpOrder
+	 *            hands the decoded pages over on this thread in dump order,
+	 *            so that without worker threads ids and documents follow the
+	 *            dump, rather than on the decoding threads as they come
+	 */
+	public void indexStreams(MultistreamDumpReader reader, long[] streams, int decodeThreads, long checkpointMillis,
+			boolean resume, boolean inDumpOrder) throws IOException, SAXException {
+		if (resume) {
+			Checkpoint checkpoint = getLastCheckpoint();
+			if (checkpoint != null) {
+				System.out.println("Resuming from checkpoint: " + checkpoint);
+				resumeFrom(checkpoint);
+				streams = reader.streamsFrom(streams, checkpoint.getDumpOffset());
+			}
+		}
+
+		MultistreamDumpReader.CheckpointListener listener = new MultistreamDumpReader.CheckpointListener() {
+			@Override
+			public void checkpoint(long nextStreamOffset, long pages) throws IOException {
+				WikipediaToLuceneIndex.this.checkpoint(new Checkpoint(null, null, nextStreamOffset, pages));
+			}
+		};
+		if (inDumpOrder)
+			reader.parseInOrder(this, decodeThreads, streams, listener, checkpointMillis);
+		else
+			reader.parse(this, decodeThreads, streams, listener, checkpointMillis);
 	}
 
-	private void readKeywords(String keywordsPath) {
+	/**
+	 * Opens near-real-time searchers on the writer, so questions can be run
+	 * while articles are still being indexed. A background thread refreshes
+	 * them every interval; callers acquire and release searchers from the
+	 * manager. Closed together with this indexer.
+	 */
+	public synchronized SearcherManager openSearcherManager(final long refreshMillis) throws IOException {
+		if (searcherManager != null)
+			return searcherManager;
+
+		searcherManager = new SearcherManager(indexWriter, true, null);
+		final SearcherManager manager = searcherManager;
+		refresher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!refresherStop.await(refreshMillis, TimeUnit.MILLISECONDS))
+						manager.maybeRefresh();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "nrt-refresh");
+		refresher.setDaemon(true);
+		refresher.start();
+		return searcherManager;
+	}
+
+	/**
+	 * @return the near-real-time searchers, or null if not opened
+	 */
+	public synchronized SearcherManager getSearcherManager() {
+		return searcherManager;
+	}
+
+	private synchronized void closeSearcherManager() throws IOException {
+		if (searcherManager == null)
+			return;
+
+		refresherStop.countDown();
+		try {
+			refresher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		searcherManager.close();
+		searcherManager = null;
+	}
+
+	private void stopWorkers() {
+		try {
+			for (int i = 0; i < workers.size(); i++)
+				queue.put(END_OF_INPUT);
+			for (Thread worker : workers)
+				worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for the workers to drain the queue before closing the writer.
+	 */
+	public void close() throws IOException {
+		try {
+			stopWorkers();
+			closeSearcherManager();
+		} finally {
+			indexWriter.close();
+		}
+	}
+
+	/**
+	 * Drops everything indexed since the last checkpoint, so that a failed run
+	 * does not commit articles its checkpoint does not account for.
+	 */
+	public void abort() throws IOException {
+		try {
+			stopWorkers();
+			closeSearcherManager();
+		} finally {
+			indexWriter.rollback();
+		}
+	}
+
+	public static Set<String> readKeywords(String keywordsPath) {
+		Set<String> keywords = new LinkedHashSet<String>();
 		try {
 			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(keywordsPath)));
 			String aLine;
 			while ((aLine = reader.readLine()) != null) {
-				if (aLine.trim().length() > 0) {
-					if (!keywords.contains(aLine))
-						keywords.add(aLine);
-				}
+				if (aLine.trim().length() > 0)
+					keywords.add(aLine);
 			}
 			reader.close();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+
+		return keywords;
 	}
 
 	public boolean containKeyword(String text) {
-		for (String keyword : keywords) {
-			if (text.contains(keyword))
-				return true;
+		return keywordMatcher.matches(text);
+	}
+
+	/**
+	 * @return the keywords found in the text with their occurrence counts
+	 */
+	public Map<String, Integer> countKeywords(String text) {
+		return keywordMatcher.countMatches(text);
+	}
+
+	/**
+	 * Indexes the article text with its wiki markup stripped; the keyword
+	 * filter still runs on the raw text.
+	 */
+	public void setStripMarkup(boolean stripMarkup, boolean keepRawText) {
+		this.stripMarkup = stripMarkup;
+		this.keepRawText = keepRawText;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	public IndexingStats getStats() {
+		return stats;
+	}
+
+	public void setPassageSplitter(PassageSplitter passageSplitter) {
+		this.passageSplitter = passageSplitter;
+	}
+
+	public void setPageFilter(PageFilter pageFilter) {
+		this.pageFilter = pageFilter;
+	}
+
+	/**
+	 * Accumulates per keyword occurrence totals over the indexed articles,
+	 * printed by {@link #printKeywordStats()}.
+	 */
+	public void enableKeywordStats() {
+		keywordStats = new ConcurrentHashMap<String, AtomicLong>();
+	}
+
+	private void addKeywordStats(Map<String, Integer> counts) {
+		for (Map.Entry<String, Integer> e : counts.entrySet()) {
+			AtomicLong total = keywordStats.get(e.getKey());
+			if (total == null) {
+				AtomicLong created = new AtomicLong();
+				total = keywordStats.putIfAbsent(e.getKey(), created);
+				if (total == null)
+					total = created;
+			}
+			total.addAndGet(e.getValue());
 		}
+	}
+
+	public void printKeywordStats() {
+		if (keywordStats == null)
+			return;
 
-		return false;
+		System.out.println("Keyword occurrences in indexed articles:");
+		for (String keyword : keywordMatcher.getKeywords()) {
+			AtomicLong total = keywordStats.get(keyword);
+			System.out.println(keyword + "\t" + (total != null ? total.get() : 0));
+		}
 	}
 
 	public static void main(String[] args) throws IOException {
 		// java -cp lucene-wikipedia-0.0.1-jar-with-dependencies.jar
 		// markpeng.wiki.WikipediaToLuceneIndex
 		// enwiki-latest-pages-articles.xml.bz2 "lucene-wiki-index-keywords" "keywords.txt"
+		// --threads=8
+		// (multistream dump, 4 decoding threads)
+		// enwiki-latest-pages-articles-multistream.xml.bz2 "lucene-wiki-index-keywords" "keywords.txt"
+		// --multistreamIndex=enwiki-latest-pages-articles-multistream-index.txt.bz2 --decodeThreads=4
+		// (8 shards built in parallel, then merged into one index)
+		// --multistreamIndex=... --shards=8 --merge
+		// (commit a checkpoint every 10 minutes; rerun with --resume after a crash)
+		// --checkpointMinutes=10
+		// (bulk load writer settings, final merge down to 5 segments)
+		// --profile=bulk --ramBufferMB=1024 --mergeMBPerSec=100 --forceMerge=5
+		// (index plain prose, keep the markup in the stored rawText field)
+		// --stripMarkup --keepRawText
+		// (only main namespace articles, no redirects or disambiguation pages, at least 500 chars)
+		// --articlesOnly --minTextLength=500
+		// (or rule by rule)
+		// --namespaces=0,14 --skipRedirects --skipTitles="^List of " --minTextLength=500
+		// (index passages of up to 1000 chars, overlapping by one paragraph, instead of whole articles)
+		// --passages --passageChars=1000 --passageOverlap=1
+		// (answer questions from near-real-time searchers while indexing, refreshed every 30 seconds)
+		// --questions=validation_set.tsv --answers=answers.csv --topN=5 --refreshSeconds=30
+		// (progress line every 10 seconds, stats file at the end, print every article)
+		// --statsSeconds=10 --statsFile=index-stats.txt --verbose
 
-		if (args.length != 3) {
+		CommandLineOptions options = new CommandLineOptions(args);
+		List<String> positional = options.getPositional();
+		if (positional.size() != 3) {
 			System.err.println("Usage: java -cp lucene-wikipedia-0.0.1-jar-with-dependencies.jar "
 					+ "markpeng.wiki.WikipediaToLuceneIndex <path of XML bz2 file> " + "<path of lucene index folder> "
-					+ "<keywords to filter>");
+					+ "<keywords to filter> [--threads=<indexing threads>] [--queueSize=<articles>] [--keywordStats] "
+					+ "[--multistreamIndex=<path of multistream index> [--decodeThreads=<threads>] "
+					+ "[--titles=<file with one title per line>] [--shards=<N> [--merge]]] "
+					+ "[--checkpointMinutes=<minutes>] [--resume] "
+					+ "[--profile=bulk [--ramBufferMB=<MB>] [--mergeMBPerSec=<MB/s, 0 for no cap>] "
+					+ "[--compoundFiles=<true|false>] [--segmentsPerTier=<N>] [--mergeThreads=<N>] "
+					+ "[--forceMerge=<max segments>]] [--stripMarkup [--keepRawText]] "
+					+ "[--articlesOnly] [--namespaces=<n,n,...>] [--skipRedirects] [--skipTitles=<regex>] "
+					+ "[--minTextLength=<chars>] [--statsSeconds=<seconds, 0 for none>] [--statsFile=<path>] "
+					+ "[--verbose] [--passages [--passageChars=<chars>] [--passageOverlap=<paragraphs>]] "
+					+ "[--questions=<questions tsv> [--answers=<output csv>] [--topN=<N>] "
+					+ "[--refreshSeconds=<seconds>] [--passageScore=<none|max|sum>]]");
 			System.exit(-1);
 		}
 
-		String bz2Filename = args[0];
-		String luceneFolderPath = args[1];
-		String keywordsPath = args[2];
+		String bz2Filename = positional.get(0);
+		String luceneFolderPath = positional.get(1);
+		String keywordsPath = positional.get(2);
+		int threads = options.getInt("threads", 0);
+		int queueSize = options.getInt("queueSize", threads * 64);
+		long checkpointMillis = (long) (options.getDouble("checkpointMinutes", 0) * 60 * 1000);
+		boolean resume = options.has("resume");
+		// without checkpoints a failed run keeps what it indexed, as before
+		boolean checkpointing = checkpointMillis > 0 || resume;
+		BulkLoadProfile profile = null;
+		if ("bulk".equals(options.getString("profile", null)))
+			profile = BulkLoadProfile.fromOptions(options);
+		PageFilter pageFilter = PageFilter.fromOptions(options);
+		IndexingStats stats = new IndexingStats();
+		stats.startReporter(options.getInt("statsSeconds", 60) * 1000L);
+
+		if (options.has("shards")) {
+			if (options.has("questions")) {
+				System.err.println("--questions needs a single index writer, it cannot be combined with --shards");
+				System.exit(-1);
+			}
+			try {
+				buildShards(options, bz2Filename, luceneFolderPath, keywordsPath, threads, queueSize,
+						checkpointMillis, resume, profile, pageFilter, stats);
+			} finally {
+				printStats(options, stats);
+			}
+			return;
+		}
 
-		WikipediaToLuceneIndex handler = new WikipediaToLuceneIndex(luceneFolderPath, keywordsPath);
+		WikipediaToLuceneIndex handler = new WikipediaToLuceneIndex(luceneFolderPath,
+				new KeywordMatcher(readKeywords(keywordsPath)), 0, threads, queueSize, profile, stats);
+		handler.setVerbose(options.has("verbose"));
+		if (options.has("keywordStats"))
+			handler.enableKeywordStats();
+		handler.setStripMarkup(options.has("stripMarkup"), options.has("keepRawText"));
+		handler.setPageFilter(pageFilter);
+		if (options.has("passages"))
+			handler.setPassageSplitter(PassageSplitter.fromOptions(options));
+		// answer questions on the partial index while it is being built
+		Thread questions = null;
+		if (options.has("questions"))
+			questions = startQuestions(options, handler, luceneFolderPath);
+		boolean completed = false;
 		try {
-			WikiXMLParser wxp = new WikiXMLParser(bz2Filename, handler);
-			wxp.parse();
+			if (options.has("multistreamIndex")) {
+				MultistreamDumpReader reader = openMultistream(options, bz2Filename);
+				handler.indexStreams(reader, reader.getStreamOffsets(),
+						options.getInt("decodeThreads", Runtime.getRuntime().availableProcessors()), checkpointMillis,
+						resume, false);
+			} else {
+				CheckpointingDumpParser parser = new CheckpointingDumpParser(bz2Filename, handler, checkpointMillis);
+				Checkpoint checkpoint = resume ? handler.getLastCheckpoint() : null;
+				if (checkpoint != null) {
+					System.out.println("Resuming from checkpoint: " + checkpoint);
+					handler.resumeFrom(checkpoint);
+					parser.resumeFrom(checkpoint);
+				}
+				parser.parse();
+			}
+			if (profile != null)
+				profile.finish(handler.indexWriter);
+			completed = true;
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
-			handler.indexWriter.close();
+			if (questions != null)
+				finishQuestions(handler, questions);
+			if (completed || !checkpointing)
+				handler.close();
+			else
+				handler.abort();
+			handler.printKeywordStats();
+			if (pageFilter != null)
+				System.out.println(pageFilter.report());
+			if (profile != null)
+				System.out.println(profile.report());
+			printStats(options, stats);
 		}
 	}
 
+	private static Thread startQuestions(CommandLineOptions options, WikipediaToLuceneIndex handler,
+			String luceneFolderPath) throws IOException {
+		SearcherManager manager = handler
+				.openSearcherManager((long) (options.getDouble("refreshSeconds", 30) * 1000));
+		final QuestionToWiki worker = new QuestionToWiki(manager, new File(luceneFolderPath),
+				options.getString("questions", null), options.getString("answers", "answers.csv"));
+		worker.setPassageScore(QuestionToWiki.PassageScore.valueOf(options.getString("passageScore", "max")
+				.toUpperCase()));
+		final int topN = options.getInt("topN", 5);
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					worker.questionAnsweringWithORCount(topN);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, "questions");
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Lets the remaining questions see the whole index and waits for them.
+	 */
+	private static void finishQuestions(WikipediaToLuceneIndex handler, Thread questions) {
+		try {
+			handler.getSearcherManager().maybeRefresh();
+			questions.join();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void printStats(CommandLineOptions options, IndexingStats stats) throws IOException {
+		stats.stop();
+		System.out.println(stats.report());
+		if (options.has("statsFile"))
+			stats.writeTo(new File(options.getString("statsFile", null)));
+	}
+
+	private static MultistreamDumpReader openMultistream(CommandLineOptions options, String bz2Filename)
+			throws IOException {
+		MultistreamDumpReader reader = new MultistreamDumpReader(bz2Filename,
+				options.getString("multistreamIndex", null));
+		if (options.has("titles"))
+			reader.restrictToTitles(Files.readAllLines(Paths.get(options.getString("titles", null)),
+					Charset.forName("UTF-8")));
+		return reader;
+	}
+
+	private static void buildShards(CommandLineOptions options, String bz2Filename, String luceneFolderPath,
+			String keywordsPath, int threads, int queueSize, long checkpointMillis, boolean resume,
+			BulkLoadProfile profile, PageFilter pageFilter, IndexingStats stats) throws IOException {
+		if (!options.has("multistreamIndex")) {
+			System.err.println("--shards needs a multistream dump and --multistreamIndex to split it into ranges");
+			System.exit(-1);
+		}
+
+		int shards = options.getInt("shards", 1);
+		MultistreamDumpReader reader = openMultistream(options, bz2Filename);
+		ShardedIndexBuilder builder = new ShardedIndexBuilder(reader,
+				new KeywordMatcher(readKeywords(keywordsPath)), new File(luceneFolderPath));
+		builder.setDecodeThreads(
+				options.getInt("decodeThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / shards)));
+		// shards index on their own thread, so that they keep dump order
+		if (threads > 0)
+			System.out.println("--threads is ignored with --shards");
+		builder.setKeywordStats(options.has("keywordStats"));
+		builder.setCheckpointing(checkpointMillis, resume);
+		builder.setProfile(profile);
+		builder.setStripMarkup(options.has("stripMarkup"), options.has("keepRawText"));
+		builder.setPageFilter(pageFilter);
+		builder.setStats(stats, options.has("verbose"));
+		if (options.has("passages"))
+			builder.setPassageSplitter(PassageSplitter.fromOptions(options));
+
+		boolean merge = options.has("merge");
+		List<File> shardFolders = builder.build(shards, merge);
+		if (merge)
+			builder.merge(shardFolders);
+		if (pageFilter != null)
+			System.out.println(pageFilter.report());
+		if (profile != null)
+			System.out.println(profile.report());
+	}
+
 }